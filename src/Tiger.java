@@ -1,28 +1,43 @@
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
+import ast.Cache;
+import ast.Tree;
 import lexer.Lexer;
-import lexer.Token;
+import lexer.Source;
+import lexer.TokenBuffer;
+import parser.Metrics;
 import parser.Parser;
+import parser.ReparseCheck;
+import util.ByteWriter;
+import util.Diagnostics;
 import control.CommandLine;
+import elaborator.Elaborator;
 import control.Control;
 
 public class Tiger {
 	public static void main(String[] args) {
-		InputStream fstream;
-		Parser parser;
-
 		// ///////////////////////////////////////////////////////
 		// handle command line arguments
 		CommandLine cmd = new CommandLine();
 		String fname = cmd.scan(args);
+		if (cmd.diagnostics().count() > 0) {
+			cmd.diagnostics().dump(ByteWriter.out);
+			ByteWriter.out.flush();
+			cmd.output();
+			System.exit(1);
+		}
+		if (cmd.help) {
+			cmd.usage();
+			System.exit(1);
+		}
 
 		// /////////////////////////////////////////////
 		// the straight-line interpreter (and compiler)
 		switch (Control.ConSlp.action) {
 		case NONE:
-			System.exit(0);
 			break;
 		default:
 			slp.Main slpmain = new slp.Main();
@@ -43,16 +58,20 @@ public class Tiger {
 		// it would be helpful to be able to test the lexer
 		// independently.
 		if (Control.ConLexer.test) {
-			System.out.println("Testing the lexer. All tokens:");
+			ByteWriter out = ByteWriter.out;
+			out.write("Testing the lexer. All tokens:\n");
 			try {
-				fstream = new BufferedInputStream(new FileInputStream(fname));
-				Lexer lexer = new Lexer(fname, fstream);
-				Token token = lexer.nextToken();
-				while (token.kind != Token.Kind.TOKEN_EOF) {
-					System.out.println(token.toString());
-					token = lexer.nextToken();
-				}
-				fstream.close();
+				Source src = load(fname);
+				Diagnostics diagnostics = new Diagnostics(fname);
+				TokenBuffer tokens;
+				if (Control.ConLexer.jobs > 1)
+					tokens = Lexer.lexParallel(fname, src, Control.ConLexer.jobs, diagnostics);
+				else
+					tokens = new Lexer(fname, src, diagnostics).lexAll();
+				// all tokens but the trailing TOKEN_EOF
+				for (int i = 0; i < tokens.size() - 1; i++)
+					tokens.dump(i, out);
+				diagnostics.dump(out);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -62,16 +81,81 @@ public class Tiger {
 		// /////////////////////////////////////////////////////////
 		// normal compilation phases.
 		try {
-			fstream = new BufferedInputStream(new FileInputStream(fname));
-			parser = new Parser(fname, fstream);
+			Source src = load(fname);
+			Diagnostics diagnostics = new Diagnostics(fname);
 
-			parser.parse();
+			if (Control.ConAst.stats) {
+				// the events of the parse are enough
+				Metrics metrics = new Metrics();
+				parser(fname, src, diagnostics).parse(metrics);
+				metrics.dump(ByteWriter.out);
+				diagnostics.dump(ByteWriter.out);
+				return;
+			}
+
+			if (Control.ConAst.reparseCheck > 0) {
+				int kept = new ReparseCheck(fname, 0).run(src, Control.ConAst.reparseCheck, diagnostics);
+				ByteWriter.out.write("reparse check: " + kept + " of " + Control.ConAst.reparseCheck
+						+ " edits reparsed in place\n");
+				diagnostics.dump(ByteWriter.out);
+				if (diagnostics.count() > 0)
+					System.exit(1);
+				return;
+			}
 
-			fstream.close();
+			// an unchanged file isn't parsed again
+			Cache cache = null;
+			byte[] hash = null;
+			Tree tree = null;
+			if (Control.ConAst.cache != null) {
+				cache = new Cache(Control.ConAst.cache, Control.ConAst.share);
+				hash = src.hash();
+				tree = cache.load(hash, src);
+			}
+			if (tree == null) {
+				tree = parser(fname, src, diagnostics).parse();
+				if (diagnostics.count() > 0) {
+					diagnostics.dump(ByteWriter.out);
+					System.exit(1);
+				}
+				if (cache != null)
+					cache.store(hash, tree);
+			}
+			if (Control.ConAst.dump)
+				tree.dump(tree.root(), ByteWriter.out);
+
+			// the semantic checks
+			if (!new Elaborator(tree, diagnostics).check()) {
+				diagnostics.dump(ByteWriter.out);
+				System.exit(1);
+			}
+			// the later phases are still to come: the tree isn't needed
+			// anymore, and is freed whole (see "Storage")
+			tree.free();
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 		return;
 	}
+
+	private static Parser parser(String fname, Source src, Diagnostics diagnostics) {
+		if (Control.ConLexer.jobs > 1)
+			return new Parser(Lexer.lexParallel(fname, src, Control.ConLexer.jobs, diagnostics), diagnostics);
+		if (Control.ConAst.jobs > 1)
+			// the classes are found in the whole token stream
+			return new Parser(new Lexer(fname, src, diagnostics).lexAll(), diagnostics);
+		return new Parser(fname, src, diagnostics);
+	}
+
+	// read, or map, the file to compile
+	private static Source load(String fname) throws IOException {
+		if (Control.ConLexer.mmap)
+			return Source.map(fname);
+
+		InputStream fstream = new BufferedInputStream(new FileInputStream(fname));
+		Source src = Source.read(fstream);
+		fstream.close();
+		return src;
+	}
 }
@@ -0,0 +1,290 @@
+package ast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import lexer.Source;
+import lexer.Token.Kind;
+import lexer.TokenBuffer;
+
+// A directory of the trees of the files compiled, so that a file
+// compiled again unchanged is neither scanned nor parsed: its tokens
+// and its tree are loaded from the entry of its content, a file named
+// after the SHA-256 digest of the source, and whether the identical
+// expressions are shared in the tree.
+//
+// An entry is laid out as
+//
+//   header: MAGIC, VERSION, ORDER, the length of the source, the number
+//           of tokens, the number of nodes, the root, the flags, the
+//           CRC-32C of the rest of the entry, and the digest
+//   nodes:  the records of an "OffHeap" storage
+//   tokens: the offsets, the lengths, then the kinds of the tokens
+//
+// in the byte order of the machine which wrote it, so that the nodes
+// are mapped, read only, and used in place. An entry which is missing,
+// damaged, or written by another machine or version is only a miss; an
+// entry which can't be written is not written, and the compiler goes on
+// without. The directory may be shared, and read only.
+public class Cache {
+	private static final int MAGIC = 0x54494752; // "TIGR"
+	private static final int VERSION = 2; // to change with the layout, or
+											// with the tags and the tokens
+	private static final int ORDER = 0x01020304; // reads differently in
+													// the other byte order
+	private static final int HEADER = 80;
+	private static final int SOURCE = 12, TOKENS = 16, NODES = 20, ROOT = 24, FLAGS = 28, CHECKSUM = 32,
+			DIGEST = 40;
+	private static final int SHARED = 1; // a flag: the tree has REF nodes
+	private static final int RECORD = Storage.OffHeap.RECORD;
+
+	private static final int NTAGS = Tag.values().length;
+	private static final int REF = Tag.REF.ordinal();
+	private static final int NKINDS = Kind.values().length;
+
+	private Path dir;
+	private int flags; // of the trees loaded and stored
+
+	// the cache in "dir" of the trees parsed with "share" set or not
+	public Cache(String dir, boolean share) {
+		this.dir = Paths.get(dir);
+		this.flags = share ? SHARED : 0;
+	}
+
+	private Path entry(byte[] hash) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : hash)
+			name.append(String.format("%02x", b & 0xff));
+		if ((this.flags & SHARED) != 0)
+			name.append(".share");
+		return this.dir.resolve(name.append(".ast").toString());
+	}
+
+	// the CRC-32C of the entry "buf", all of it but the checksum
+	private static int checksum(ByteBuffer buf) {
+		CRC32C crc = new CRC32C();
+		crc.update(buf.slice(0, CHECKSUM));
+		crc.update(buf.slice(CHECKSUM + 4, buf.capacity() - CHECKSUM - 4));
+		return (int) crc.getValue();
+	}
+
+	// /////////////////////////////////////////////
+	// loading
+
+	// Return the tree of "src", whose digest is "hash", as stored by an
+	// earlier compile, or null.
+	public Tree load(byte[] hash, Source src) {
+		MappedByteBuffer buf;
+		// mapped read only: the nodes which change are copied by the
+		// storage first
+		try (FileChannel channel = FileChannel.open(this.entry(hash), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER || size > Integer.MAX_VALUE)
+				return null;
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (IOException e) {
+			return null;
+		}
+		buf.order(ByteOrder.nativeOrder());
+
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(8) != ORDER
+				|| buf.getInt(FLAGS) != this.flags)
+			return null;
+		for (int i = 0; i < hash.length; i++) {
+			if (buf.get(DIGEST + i) != hash[i])
+				return null;
+		}
+		int ntokens = buf.getInt(TOKENS);
+		int nnodes = buf.getInt(NODES);
+		if (buf.getInt(SOURCE) != src.length() || ntokens < 0 || nnodes <= 0)
+			return null;
+		if (buf.capacity() != HEADER + (long) nnodes * RECORD + 9L * ntokens)
+			return null;
+		if (buf.getInt(CHECKSUM) != checksum(buf))
+			return null;
+
+		TokenBuffer tokens = readTokens(buf, HEADER + nnodes * RECORD, ntokens, src);
+		if (tokens == null)
+			return null;
+		Tree tree = new Tree(tokens, new Storage.OffHeap(buf, HEADER, nnodes));
+		tree.setRoot(buf.getInt(ROOT));
+		if ((this.flags & SHARED) != 0)
+			tree.setSharing();
+		if (!valid(tree)) {
+			tree.free();
+			return null;
+		}
+		return tree;
+	}
+
+	private static TokenBuffer readTokens(ByteBuffer buf, int at, int ntokens, Source src) {
+		int[] offsets = new int[ntokens];
+		int[] lengths = new int[ntokens];
+		byte[] kinds = new byte[ntokens];
+
+		buf.slice(at, 4 * ntokens).order(buf.order()).asIntBuffer().get(offsets);
+		buf.slice(at + 4 * ntokens, 4 * ntokens).order(buf.order()).asIntBuffer().get(lengths);
+		buf.get(at + 8 * ntokens, kinds);
+		for (int i = 0; i < ntokens; i++) {
+			if (kinds[i] < 0 || kinds[i] >= NKINDS || offsets[i] < 0 || lengths[i] < 0
+					|| (long) offsets[i] + lengths[i] > src.length())
+				return null;
+		}
+		return new TokenBuffer(src, kinds, offsets, lengths, ntokens);
+	}
+
+	// Check that the nodes reached from the root form a tree of known
+	// tags and tokens (or NONE, for the PROGRAM), whose REF nodes share
+	// nodes of the tree. The checksum finds the entries damaged; this
+	// keeps an entry written wrong from making the compiler loop.
+	private static boolean valid(Tree tree) {
+		Storage storage = tree.storage;
+		int size = storage.size();
+		int ntokens = tree.tokenBuffer.size();
+		if (tree.root < 0 || tree.root >= size)
+			return false;
+
+		boolean[] seen = new boolean[size];
+		int[] stack = new int[64];
+		int depth = 0;
+		boolean refs = false;
+		seen[tree.root] = true;
+		stack[depth++] = tree.root;
+		while (depth > 0) {
+			int n = stack[--depth];
+			int tag = storage.tag(n);
+			int token = storage.token(n);
+			if (tag < 0 || tag >= NTAGS || token < Tree.NONE || token >= ntokens)
+				return false;
+			if (tag == REF) {
+				// checked once all the tree is seen
+				refs = true;
+				continue;
+			}
+			for (int c = storage.child(n); c != Tree.NONE; c = storage.sibling(c)) {
+				if (c < 0 || c >= size || seen[c])
+					return false;
+				seen[c] = true;
+				if (depth == stack.length)
+					stack = Arrays.copyOf(stack, 2 * depth);
+				stack[depth++] = c;
+			}
+		}
+
+		// a REF shares a node of the tree, which isn't a REF
+		for (int n = 0; refs && n < size; n++) {
+			if (seen[n] && storage.tag(n) == REF) {
+				int shared = storage.child(n);
+				if (shared < 0 || shared >= size || !seen[shared] || storage.tag(shared) == REF)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// /////////////////////////////////////////////
+	// storing
+
+	// Store "tree", the tree of the source whose digest is "hash",
+	// which has been parsed without errors. A tree with bodies still
+	// skipped isn't stored: its entry would miss them.
+	public void store(byte[] hash, Tree tree) {
+		TokenBuffer tokens = tree.tokenBuffer;
+		if (tokens.first() != 0 || hasSkipped(tree))
+			return;
+
+		Storage storage = tree.storage;
+		int ntokens = tokens.size();
+		int nnodes = storage.size();
+		long size = HEADER + (long) nnodes * RECORD + 9L * ntokens;
+		if (size > Integer.MAX_VALUE)
+			return;
+
+		Path tmp = null;
+		try {
+			Files.createDirectories(this.dir);
+			// written aside, then renamed, so that a compiler never
+			// maps an entry which is half written
+			tmp = Files.createTempFile(this.dir, "tmp", ".ast");
+			try {
+				// readable by the other users of the directory: a
+				// temporary file is only for its owner
+				Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+			} catch (UnsupportedOperationException e) {
+				// not a POSIX file system: its own defaults
+			}
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buf.order(ByteOrder.nativeOrder());
+				this.write(buf, hash, tree);
+				buf.force();
+			}
+			Files.move(tmp, this.entry(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException f) {
+					// nothing more to do
+				}
+			}
+		}
+	}
+
+	private void write(ByteBuffer buf, byte[] hash, Tree tree) {
+		TokenBuffer tokens = tree.tokenBuffer;
+		Storage storage = tree.storage;
+		int ntokens = tokens.size();
+		int nnodes = storage.size();
+
+		buf.putInt(0, MAGIC);
+		buf.putInt(4, VERSION);
+		buf.putInt(8, ORDER);
+		buf.putInt(SOURCE, tokens.source().length());
+		buf.putInt(TOKENS, ntokens);
+		buf.putInt(NODES, nnodes);
+		buf.putInt(ROOT, tree.root);
+		buf.putInt(FLAGS, this.flags);
+		buf.put(DIGEST, hash);
+
+		for (int n = 0; n < nnodes; n++) {
+			int at = HEADER + n * RECORD;
+			buf.putInt(at + Storage.OffHeap.TOKEN, storage.token(n));
+			buf.putInt(at + Storage.OffHeap.CHILD, storage.child(n));
+			buf.putInt(at + Storage.OffHeap.SIBLING, storage.sibling(n));
+			buf.putInt(at + Storage.OffHeap.TAG, storage.tag(n));
+		}
+
+		int at = HEADER + nnodes * RECORD;
+		for (int i = 0; i < ntokens; i++) {
+			buf.putInt(at + 4 * i, tokens.offset(i));
+			buf.putInt(at + 4 * (ntokens + i), tokens.length(i));
+			buf.put(at + 8 * ntokens + i, (byte) tokens.kind(i).ordinal());
+		}
+		buf.putInt(CHECKSUM, checksum(buf));
+	}
+
+	// whether a method of "tree" still has its body skipped
+	private static boolean hasSkipped(Tree tree) {
+		for (int c = tree.child(tree.root); c != Tree.NONE; c = tree.next(c)) {
+			if (tree.tag(c) != Tag.CLASS)
+				continue;
+			for (int m = tree.child(tree.child(c, 1)); m != Tree.NONE; m = tree.next(m)) {
+				if (tree.skipped(tree.child(m, 2)))
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,286 @@
+package ast;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Where the nodes of a "Tree" live. Each node is four ints: its tag,
+// its token, its first child and its next sibling.
+//
+// There are two kinds of storage: "Heap" keeps the nodes in arrays of
+// the Java heap, and "OffHeap" keeps them in direct buffers, out of
+// the reach of the garbage collector, which are released as soon as
+// "free" is called instead of at the next collection.
+//
+// The nodes are freed for a whole tree, not for each class once its
+// code is generated: there is no code generation yet, so the tree is
+// freed after the semantic checks. The nodes of a class are not in a
+// range of their own either: the bodies parsed lazily are added at the
+// end of the tree, and a REF may share a node of another class.
+public interface Storage {
+	int size();
+
+	// append a node without siblings, and return it
+	int add(int tag, int token, int child);
+
+	int tag(int n);
+
+	int token(int n);
+
+	int child(int n);
+
+	int sibling(int n);
+
+	void setSibling(int n, int sibling);
+
+	void setChild(int n, int child);
+
+	void setToken(int n, int token);
+
+	// release the memory of the nodes, which can't be used anymore
+	void free();
+
+	public static class Heap implements Storage {
+		byte[] tags; // the tag of each node
+		int[] tokens; // the token of each node
+		int[] children; // the first child of each node
+		int[] siblings; // the next sibling of each node
+		int size; // number of nodes
+
+		public Heap(int capacity) {
+			capacity = Math.max(capacity, 16);
+			this.tags = new byte[capacity];
+			this.tokens = new int[capacity];
+			this.children = new int[capacity];
+			this.siblings = new int[capacity];
+			this.size = 0;
+		}
+
+		@Override
+		public int size() {
+			return this.size;
+		}
+
+		@Override
+		public int add(int tag, int token, int child) {
+			if (this.size == this.tags.length) {
+				int capacity = 2 * this.size;
+				this.tags = Arrays.copyOf(this.tags, capacity);
+				this.tokens = Arrays.copyOf(this.tokens, capacity);
+				this.children = Arrays.copyOf(this.children, capacity);
+				this.siblings = Arrays.copyOf(this.siblings, capacity);
+			}
+			int n = this.size++;
+			this.tags[n] = (byte) tag;
+			this.tokens[n] = token;
+			this.children[n] = child;
+			this.siblings[n] = Tree.NONE;
+			return n;
+		}
+
+		@Override
+		public int tag(int n) {
+			return this.tags[n];
+		}
+
+		@Override
+		public int token(int n) {
+			return this.tokens[n];
+		}
+
+		@Override
+		public int child(int n) {
+			return this.children[n];
+		}
+
+		@Override
+		public int sibling(int n) {
+			return this.siblings[n];
+		}
+
+		@Override
+		public void setSibling(int n, int sibling) {
+			this.siblings[n] = sibling;
+		}
+
+		@Override
+		public void setChild(int n, int child) {
+			this.children[n] = child;
+		}
+
+		@Override
+		public void setToken(int n, int token) {
+			this.tokens[n] = token;
+		}
+
+		@Override
+		public void free() {
+			this.tags = null;
+			this.tokens = null;
+			this.children = null;
+			this.siblings = null;
+			this.size = 0;
+		}
+	}
+
+	// The nodes are 16-byte records in direct buffers of CHUNK nodes
+	// each, so that the storage grows without copying the nodes
+	// already added.
+	public static class OffHeap implements Storage {
+		private static final int CHUNK_BITS = 16;
+		private static final int CHUNK = 1 << CHUNK_BITS;
+		static final int RECORD = 16;
+		static final int TOKEN = 0, CHILD = 4, SIBLING = 8, TAG = 12;
+
+		// "sun.misc.Unsafe.invokeCleaner", which releases the memory
+		// of a direct buffer right away, or null if it can't be found
+		private static final Object UNSAFE;
+		private static final Method CLEANER;
+
+		static {
+			Object unsafe = null;
+			Method cleaner = null;
+			try {
+				Class<?> c = Class.forName("sun.misc.Unsafe");
+				Field f = c.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+				cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// leave the buffers to the garbage collector
+				unsafe = null;
+				cleaner = null;
+			}
+			UNSAFE = unsafe;
+			CLEANER = cleaner;
+		}
+
+		ByteBuffer[] chunks;
+		int size;
+		ByteBuffer records; // the buffer the read only chunks are slices
+							// of, or null
+
+		public OffHeap(int capacity) {
+			this.chunks = new ByteBuffer[Math.max(1, (capacity + CHUNK - 1) >>> CHUNK_BITS)];
+			this.size = 0;
+		}
+
+		// The "size" nodes whose records are at "offset" in the read
+		// only buffer "records", such as a mapped file, which is used in
+		// place and is released by "free". A chunk of it is copied when a
+		// node of it changes.
+		public OffHeap(ByteBuffer records, int offset, int size) {
+			this(size);
+			for (int c = 0; c < this.chunks.length; c++) {
+				int from = offset + c * CHUNK * RECORD;
+				int to = Math.min(offset + size * RECORD, from + CHUNK * RECORD);
+				this.chunks[c] = records.slice(from, to - from).order(ByteOrder.nativeOrder());
+			}
+			this.size = size;
+			this.records = records;
+		}
+
+		private ByteBuffer chunk(int n) {
+			return this.chunks[n >>> CHUNK_BITS];
+		}
+
+		// the chunk of "n", to change it: a chunk of "records" is
+		// copied, and the copy grown to a full chunk
+		private ByteBuffer writable(int n) {
+			int c = n >>> CHUNK_BITS;
+			ByteBuffer chunk = this.chunks[c];
+			if (chunk.isReadOnly()) {
+				ByteBuffer copy = ByteBuffer.allocateDirect(CHUNK * RECORD).order(ByteOrder.nativeOrder());
+				copy.put(0, chunk, 0, chunk.capacity());
+				this.chunks[c] = chunk = copy;
+			}
+			return chunk;
+		}
+
+		private static int at(int n, int field) {
+			return (n & (CHUNK - 1)) * RECORD + field;
+		}
+
+		@Override
+		public int size() {
+			return this.size;
+		}
+
+		@Override
+		public int add(int tag, int token, int child) {
+			int n = this.size;
+			int c = n >>> CHUNK_BITS;
+			if (c == this.chunks.length)
+				this.chunks = Arrays.copyOf(this.chunks, 2 * c);
+			if (this.chunks[c] == null)
+				this.chunks[c] = ByteBuffer.allocateDirect(CHUNK * RECORD).order(ByteOrder.nativeOrder());
+
+			ByteBuffer chunk = this.writable(n);
+			chunk.putInt(at(n, TOKEN), token);
+			chunk.putInt(at(n, CHILD), child);
+			chunk.putInt(at(n, SIBLING), Tree.NONE);
+			chunk.putInt(at(n, TAG), tag);
+			this.size++;
+			return n;
+		}
+
+		@Override
+		public int tag(int n) {
+			return this.chunk(n).getInt(at(n, TAG));
+		}
+
+		@Override
+		public int token(int n) {
+			return this.chunk(n).getInt(at(n, TOKEN));
+		}
+
+		@Override
+		public int child(int n) {
+			return this.chunk(n).getInt(at(n, CHILD));
+		}
+
+		@Override
+		public int sibling(int n) {
+			return this.chunk(n).getInt(at(n, SIBLING));
+		}
+
+		@Override
+		public void setSibling(int n, int sibling) {
+			this.writable(n).putInt(at(n, SIBLING), sibling);
+		}
+
+		@Override
+		public void setChild(int n, int child) {
+			this.writable(n).putInt(at(n, CHILD), child);
+		}
+
+		@Override
+		public void setToken(int n, int token) {
+			this.writable(n).putInt(at(n, TOKEN), token);
+		}
+
+		@Override
+		public void free() {
+			ByteBuffer[] chunks = this.chunks;
+			ByteBuffer records = this.records;
+			this.chunks = new ByteBuffer[1];
+			this.size = 0;
+			this.records = null;
+			if (CLEANER == null)
+				return;
+			try {
+				// slices can't be released, only the buffer they share
+				for (int c = 0; c < chunks.length; c++) {
+					if (chunks[c] != null && !chunks[c].isReadOnly())
+						CLEANER.invoke(UNSAFE, chunks[c]);
+				}
+				if (records != null && records.isDirect())
+					CLEANER.invoke(UNSAFE, records);
+			} catch (ReflectiveOperationException e) {
+				return;
+			}
+		}
+	}
+}
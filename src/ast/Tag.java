@@ -0,0 +1,60 @@
+package ast;
+
+// The kinds of the nodes of a "Tree", with their children in order.
+// "token" is the token each node refers to, usually its name or
+// its operator.
+public enum Tag {
+	// declarations
+	PROGRAM, // MAIN_CLASS CLASS*
+	MAIN_CLASS, // token: class name; ID (the arguments) Statement
+	CLASS, // token: class name; VARS METHODS [ID (the superclass)]
+	VARS, // VAR*
+	VAR, // token: name; Type
+	METHODS, // METHOD*
+	METHOD, // token: name; Type FORMALS BODY
+	FORMALS, // FORMAL*
+	FORMAL, // token: name; Type
+	BODY, // token: "{"; VARS BLOCK Exp (the returned value), or
+			// nothing if the body has been skipped
+
+	// types
+	BOOLEAN_TYPE,
+	CLASS_TYPE, // token: class name
+	INT_TYPE,
+	INT_ARRAY_TYPE,
+
+	// statements
+	ARRAY_ASSIGN, // token: array; Exp (the index) Exp
+	ASSIGN, // token: variable; Exp
+	BLOCK, // token: "{"; Statement*
+	IF, // Exp Statement Statement
+	PRINT, // Exp
+	WHILE, // Exp Statement
+
+	// expressions
+	ADD, // token: "+"; Exp Exp
+	AND, // token: "&&"; Exp Exp
+	ARRAY_SELECT, // token: "["; Exp (the array) Exp (the index)
+	CALL, // token: method name; Exp (the receiver) Exp*
+	FALSE,
+	ID, // token: name
+	LENGTH, // Exp
+	LT, // token: "<"; Exp Exp
+	NEW_INT_ARRAY, // Exp (the length)
+	NEW_OBJECT, // token: class name
+	NOT, // Exp
+	NUM, // token: the literal
+	SUB, // token: "-"; Exp Exp
+	THIS,
+	TIMES, // token: "*"; Exp Exp
+	TRUE,
+
+	// a declaration, statement or expression which doesn't parse, with
+	// the nodes parsed in it before the error
+	ERROR, // token: its first token
+
+	// an expression which is the same as another one, and shares its
+	// node (see "TreeBuilder"); it has the tag and the children of that
+	// node, but its own token and sibling
+	REF; // token: the token of this occurrence; child: the node shared
+}
@@ -0,0 +1,269 @@
+package ast;
+
+import lexer.Symbol;
+import lexer.Token.Kind;
+import lexer.TokenBuffer;
+import util.ByteWriter;
+
+// A syntax tree, stored in an arena instead of one object per node:
+// node "n" is described by its tag, its token (an index into the token
+// stream), its first child and its next sibling, which are kept in
+// flat arrays or buffers by a "Storage".
+//
+// Nodes are added bottom-up, children first, so the nodes of a subtree
+// have consecutive indices ending with its root. "Tag" gives the
+// children of each kind of node, in order, and the later phases walk
+// the nodes by their indices.
+//
+// An expression may stand for an equal one through a REF node, which
+// the navigation methods see through: it has the tag and the children
+// of the node it shares, but its own token and its own next sibling.
+//
+// The bodies of the methods may be left unparsed, as BODY nodes without
+// children, and parsed by "body" the first time they are needed: their
+// nodes are then added at the end of the tree.
+public class Tree {
+	public static final int NONE = -1; // no node
+
+	// parses the bodies of methods on demand
+	public interface Lazy {
+		// Parse the body of a method whose BODY node "body" has no
+		// children, and return the chain of its children.
+		int parse(Tree tree, int body);
+	}
+
+	private static final Tag[] TAGS = Tag.values();
+	private static final int REF = Tag.REF.ordinal();
+
+	TokenBuffer tokenBuffer; // the tokens the tree is parsed from
+	Storage storage; // the nodes
+	int root; // the PROGRAM node, or NONE
+	Lazy lazy; // for unparsed bodies, or null
+	int dead; // about how many nodes are no longer in the tree
+	boolean sharing; // whether it may have REF nodes
+
+	public Tree(TokenBuffer tokenBuffer, Storage storage) {
+		this.tokenBuffer = tokenBuffer;
+		this.storage = storage;
+		this.root = NONE;
+	}
+
+	public TokenBuffer tokens() {
+		return this.tokenBuffer;
+	}
+
+	public int size() {
+		return this.storage.size();
+	}
+
+	public int root() {
+		return this.root;
+	}
+
+	public void setRoot(int root) {
+		this.root = root;
+	}
+
+	public void setLazy(Lazy lazy) {
+		this.lazy = lazy;
+	}
+
+	// whether some nodes may be shared through REF nodes
+	public boolean sharing() {
+		return this.sharing;
+	}
+
+	public void setSharing() {
+		this.sharing = true;
+	}
+
+	// Release the nodes, whose storage may be out of the heap. The tree
+	// can't be used anymore.
+	public void free() {
+		this.storage.free();
+		this.root = NONE;
+	}
+
+	// /////////////////////////////////////////////
+	// building
+
+	// Add a node whose children are "first" and the chain of its
+	// siblings, and return it.
+	public int add(Tag tag, int token, int first) {
+		return this.storage.add(tag.ordinal(), token, first);
+	}
+
+	public int leaf(Tag tag, int token) {
+		return this.add(tag, token, NONE);
+	}
+
+	// Append all the nodes of "other", parsed from the same tokens, and
+	// return the shift of their indices: node "n" of "other" becomes
+	// node n + shift of this tree.
+	public int graft(Tree other) {
+		Storage from = other.storage;
+		int shift = this.storage.size();
+		for (int n = 0; n < from.size(); n++) {
+			int child = from.child(n);
+			int sibling = from.sibling(n);
+			int m = this.storage.add(from.tag(n), from.token(n), child == NONE ? NONE : child + shift);
+			if (sibling != NONE)
+				this.storage.setSibling(m, sibling + shift);
+		}
+		return shift;
+	}
+
+	// give children to a node added without
+	public void setChild(int n, int first) {
+		this.storage.setChild(n, first);
+	}
+
+	// Put the node "node" in the place of "old", the child of "parent"
+	// after "prev", or its first child if "prev" is NONE. The nodes of
+	// "old" are left dead in the storage.
+	public void replace(int parent, int prev, int old, int node) {
+		if (prev == NONE)
+			this.storage.setChild(parent, node);
+		else
+			this.storage.setSibling(prev, node);
+		this.storage.setSibling(node, this.storage.sibling(old));
+
+		// the first node of the subtree, which is the deepest one on
+		// the left: the bodies parsed lazily are not counted, nor the
+		// REF nodes added after their siblings
+		int first = old;
+		while (this.storage.child(first) != NONE && this.storage.tag(first) != REF)
+			first = this.storage.child(first);
+		this.dead += old - first + 1;
+	}
+
+	// the number of nodes replaced so far, which only waste space
+	public int dead() {
+		return this.dead;
+	}
+
+	// Move the tree onto "tokens", the tokens after an edit where the
+	// tokens from "from" on have moved by "shift". Nothing may refer to
+	// the tokens which the edit changed.
+	public void retoken(TokenBuffer tokens, int from, int shift) {
+		this.tokenBuffer = tokens;
+		if (shift == 0)
+			return;
+		for (int n = 0; n < this.storage.size(); n++) {
+			int token = this.storage.token(n);
+			if (token >= from)
+				this.storage.setToken(n, token + shift);
+		}
+	}
+
+	// chain "a" and "b", and return the chain
+	public int pair(int a, int b) {
+		this.storage.setSibling(a, b);
+		return a;
+	}
+
+	// /////////////////////////////////////////////
+	// navigation
+
+	public Tag tag(int n) {
+		return TAGS[this.storage.tag(this.canonical(n))];
+	}
+
+	public int token(int n) {
+		return this.storage.token(n);
+	}
+
+	public int child(int n) {
+		return this.storage.child(this.canonical(n));
+	}
+
+	public int next(int n) {
+		return this.storage.sibling(n);
+	}
+
+	// the "i"th child of node "n", or NONE
+	public int child(int n, int i) {
+		int c = this.child(n);
+		while (i-- > 0 && c != NONE)
+			c = this.storage.sibling(c);
+		return c;
+	}
+
+	public int countChildren(int n) {
+		int count = 0;
+		for (int c = this.child(n); c != NONE; c = this.storage.sibling(c))
+			count++;
+		return count;
+	}
+
+	// The node which "n" stands for: the node shared by a REF, or "n"
+	// itself. Two expressions of a method whose identical expressions
+	// are shared are equal when they have the same canonical node.
+	public int canonical(int n) {
+		if (this.storage.tag(n) == REF)
+			return this.storage.child(n);
+		return n;
+	}
+
+	// Return the BODY of the METHOD "method", after parsing it if it
+	// has been skipped.
+	public int body(int method) {
+		int body = this.child(method, 2);
+		if (this.storage.child(body) == NONE && this.lazy != null)
+			this.storage.setChild(body, this.lazy.parse(this, body));
+		return body;
+	}
+
+	// whether the BODY "body" has been skipped, and not parsed yet
+	public boolean skipped(int body) {
+		return this.storage.child(body) == NONE;
+	}
+
+	// the symbol of the token of node "n", for nodes whose token
+	// is an identifier
+	public Symbol symbol(int n) {
+		return this.tokenBuffer.symbol(this.storage.token(n));
+	}
+
+	// the id of the symbol of node "n", for nodes whose token is an
+	// identifier, without interning it again
+	public int symbolId(int n) {
+		return this.tokenBuffer.symbolId(this.storage.token(n));
+	}
+
+	// the line of node "n", or 0 for nodes without a token
+	public int line(int n) {
+		int token = this.storage.token(n);
+		if (token == NONE)
+			return 0;
+		return this.tokenBuffer.lineNum(token);
+	}
+
+	// /////////////////////////////////////////////
+	// dumping
+
+	// Write the subtree of node "n" into "out", one node per line,
+	// indented by depth.
+	public void dump(int n, ByteWriter out) {
+		this.dump(n, 0, out);
+	}
+
+	private void dump(int n, int depth, ByteWriter out) {
+		for (int i = 0; i < depth; i++)
+			out.write("  ");
+		out.write(this.tag(n).name());
+		int token = this.storage.token(n);
+		if (token != NONE) {
+			Kind kind = this.tokenBuffer.kind(token);
+			if (kind == Kind.TOKEN_ID || kind == Kind.TOKEN_NUM) {
+				out.write(' ');
+				this.tokenBuffer.source().write(out, this.tokenBuffer.offset(token), this.tokenBuffer.length(token));
+			}
+			out.write(" : at line ");
+			out.writeInt(this.line(n));
+		}
+		out.newline();
+		for (int c = this.child(n); c != NONE; c = this.storage.sibling(c))
+			this.dump(c, depth + 1, out);
+	}
+}
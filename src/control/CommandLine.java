@@ -3,6 +3,7 @@ package control;
 import java.util.LinkedList;
 
 import util.Bug;
+import util.Diagnostics;
 import control.Control.ConSlp;
 
 public class CommandLine {
@@ -31,18 +32,64 @@ public class CommandLine {
 	}
 
 	private LinkedList<Arg<Object>> args;
+	private Diagnostics diagnostics; // the bad arguments
+	public boolean help = false; // whether the help has been asked for
 
 	@SuppressWarnings("unchecked")
 	public CommandLine() {
+		this.diagnostics = new Diagnostics(null);
 		this.args = new util.Flist<Arg<Object>>()
-				.list(new Arg<Object>("help", null, "show this help information", Kind.Empty, (s) -> {
-					usage();
-					System.exit(1);
+				.list(new Arg<Object>("astcache", "<dir>", "keep the syntax trees in <dir>, for files compiled again",
+						Kind.String, (s) -> {
+							Control.ConAst.cache = (String) s;
+							return;
+						}), new Arg<Object>("dumpast", null, "dump the abstract syntax tree", Kind.Empty, (s) -> {
+					Control.ConAst.dump = true;
 					return;
-				}), new Arg<Object>("lex", null, "dump the result of lexical analysis", Kind.Empty, (s) -> {
+				}), new Arg<Object>("elabjobs", "<n>", "check the classes with <n> threads", Kind.Int, (n) -> {
+					Control.ConElab.jobs = (Integer) n;
+					return;
+				}), new Arg<Object>("help", null, "show this help information", Kind.Empty, (s) -> {
+					this.help = true;
+					return;
+				}), new Arg<Object>("lazy", null, "parse the bodies of the methods only when needed", Kind.Empty,
+						(s) -> {
+							Control.ConAst.lazy = true;
+							return;
+						}), new Arg<Object>("lex", null, "dump the result of lexical analysis", Kind.Empty, (s) -> {
 					Control.ConLexer.dump = true;
 					return;
-				}), new Arg<Object>("slp", "{args|interp|compile}", "run the SLP interpreter", Kind.String, (ss) -> {
+				}), new Arg<Object>("lexjobs", "<n>", "scan the input file with <n> threads", Kind.Int, (n) -> {
+					Control.ConLexer.jobs = (Integer) n;
+					return;
+				}), new Arg<Object>("mmap", null, "map the input file into memory instead of reading it", Kind.Empty,
+						(s) -> {
+							Control.ConLexer.mmap = true;
+							return;
+						}), new Arg<Object>("offheap", null, "keep the syntax tree out of the Java heap", Kind.Empty,
+						(s) -> {
+							Control.ConAst.offHeap = true;
+							return;
+						}), new Arg<Object>("parsejobs", "<n>", "parse the classes with <n> threads", Kind.Int, (n) -> {
+					Control.ConAst.jobs = (Integer) n;
+					return;
+				}), new Arg<Object>("parsestats", null, "count the nodes of the program, without building its tree",
+						Kind.Empty, (s) -> {
+							Control.ConAst.stats = true;
+							return;
+						}), new Arg<Object>("pipeline", null, "scan the input on a thread of its own, ahead of the parser",
+						Kind.Empty, (s) -> {
+							Control.ConLexer.pipeline = true;
+							return;
+						}), new Arg<Object>("reparsecheck", "<n>",
+						"check the reparse after <n> random edits against a full parse", Kind.Int, (n) -> {
+							Control.ConAst.reparseCheck = (Integer) n;
+							return;
+						}), new Arg<Object>("share", null, "share the identical expressions of each method in the syntax tree",
+						Kind.Empty, (s) -> {
+							Control.ConAst.share = true;
+							return;
+						}), new Arg<Object>("slp", "{args|interp|compile}", "run the SLP interpreter", Kind.String, (ss) -> {
 					String s = (String) ss;
 
 					if (s.equals("args")) {
@@ -55,33 +102,36 @@ public class CommandLine {
 						ConSlp.div = true;
 					else if (s.equals("keepasm"))
 						ConSlp.keepasm = true;
-					else {
-						System.out.println("bad argument: " + s);
-						output();
-						System.exit(1);
-					}
+					else
+						this.diagnostics.error("bad argument: " + s);
 					return;
 				}), new Arg<Object>("testlexer", null, "whether or not to test the lexer", Kind.Empty, (s) -> {
 					Control.ConLexer.test = true;
 					return;
+				}), new Arg<Object>("tracelex", null, "trace the lexer", Kind.Empty, (s) -> {
+					Control.ConLexer.trace = true;
+					return;
 				}));
 	}
 
+	// the errors in the arguments scanned
+	public Diagnostics diagnostics() {
+		return this.diagnostics;
+	}
+
 	// scan the command line arguments, return the file name
-	// in it. The file name should be unique.
+	// in it. The file name should be unique. The bad arguments
+	// are reported to "diagnostics()", and skipped.
 	public String scan(String[] cargs) {
 		String filename = null;
 
 		for (int i = 0; i < cargs.length; i++) {
 			if (!cargs[i].startsWith("-")) {
-				if (filename == null) {
+				if (filename == null)
 					filename = cargs[i];
-					continue;
-				} else {
-					System.out.println("Error: can only compile one Java file a time");
-					System.exit(1);
-				}
-			} else {
+				else
+					this.diagnostics.error("can only compile one Java file a time");
+				continue;
 			}
 
 			boolean found = false;
@@ -96,9 +146,8 @@ public class CommandLine {
 					break;
 				default:
 					if (i >= cargs.length - 1) {
-						System.out.println("Error: " + cargs[i] + ": requires an argument");
-						this.output();
-						System.exit(1);
+						this.diagnostics.error(cargs[i] + ": requires an argument");
+						return filename;
 					}
 					i++;
 					break;
@@ -111,22 +160,15 @@ public class CommandLine {
 						arg.action.f(new Boolean(true));
 					else if (theArg.equals("false"))
 						arg.action.f(new Boolean(false));
-					else {
-						System.out.println("Error: " + arg.name + ": requires a boolean");
-						this.output();
-						System.exit(1);
-					}
+					else
+						this.diagnostics.error(arg.name + ": requires a boolean");
 					break;
 				case Int:
-					int num = 0;
 					try {
-						num = Integer.parseInt(theArg);
+						arg.action.f(Integer.parseInt(theArg));
 					} catch (java.lang.NumberFormatException e) {
-						System.out.println("Error: " + arg.name + ": requires an integer");
-						this.output();
-						System.exit(1);
+						this.diagnostics.error(arg.name + ": requires an integer");
 					}
-					arg.action.f(num);
 					break;
 				case String:
 					arg.action.f(theArg);
@@ -140,11 +182,8 @@ public class CommandLine {
 				}
 				break;
 			}
-			if (!found) {
-				System.out.println("invalid option: " + cargs[i]);
-				this.output();
-				System.exit(1);
-			}
+			if (!found)
+				this.diagnostics.error("invalid option: " + cargs[i]);
 		}
 		return filename;
 	}
@@ -5,6 +5,36 @@ public class Control {
 	public static class ConLexer {
 		public static boolean test = false;
 		public static boolean dump = false;
+		public static boolean mmap = false; // map the input file, instead of
+											// reading it into the heap
+		public static int jobs = 1; // number of threads to scan the input
+		public static boolean pipeline = false; // scan on a thread of its
+												// own, ahead of the parser
+		public static boolean trace = false; // trace each token scanned
+	}
+
+	// the abstract syntax tree
+	public static class ConAst {
+		public static boolean dump = false; // dump the tree after parsing
+		public static int jobs = 1; // number of threads to parse the classes
+		public static boolean lazy = false; // parse the bodies of the
+											// methods only when needed
+		public static boolean offHeap = false; // keep the nodes out of the
+												// Java heap
+		public static boolean stats = false; // count the nodes, without
+												// building a tree
+		public static boolean share = false; // share the identical
+												// expressions of a method
+		public static String cache = null; // the directory of the trees
+											// parsed before, or null
+		public static int reparseCheck = 0; // number of random edits to
+											// check the reparse with
+	}
+
+	// the elaborator
+	public static class ConElab {
+		public static int jobs = 1; // number of threads to check the
+									// classes
 	}
 
 	// the straight-line program interpreter
@@ -0,0 +1,274 @@
+package elaborator;
+
+import java.util.Arrays;
+
+import ast.Tag;
+import ast.Tree;
+import util.Diagnostics;
+
+// The classes of a program, with their superclasses, their fields and
+// the signatures of their methods: all that the bodies of the methods
+// are checked against. It is built in a single sequential pass, and
+// only read afterwards, so the bodies can be checked by several
+// threads at once.
+//
+// The classes and the methods are indices into flat arrays, and the
+// names are looked up by the ids of their symbols, in "Table"s keyed by
+// them (and by a class, for the members).
+final class ClassTable {
+	private Tree tree;
+
+	// the classes, the main class first
+	int nclasses;
+	int[] classNodes; // the MAIN_CLASS or CLASS node of each class
+	int[] supers; // its superclass, or ERROR
+	Table classes; // class name -> class
+
+	private Table fields; // (class, field name) -> type
+
+	// the methods
+	private int nmethods;
+	int[] returns; // the return type of each method
+	int[] firstParams; // where its formals start in "params"
+	int[] nparams; // number of its formals
+	private int[] methodNodes; // its METHOD node
+	int[] params; // the types of the formals of all the methods
+	private int size; // number of types in "params"
+	private Table methods; // (class, method name) -> method
+
+	// Build the tables of the classes of "tree", reporting the errors
+	// of the declarations to "diagnostics".
+	ClassTable(Tree tree, Diagnostics diagnostics) {
+		this.tree = tree;
+		int program = tree.root();
+		this.buildClasses(program, diagnostics);
+		this.buildMembers(diagnostics);
+		this.checkOverrides(diagnostics);
+	}
+
+	// /////////////////////////////////////////////
+	// errors and types
+
+	void error(Diagnostics diagnostics, int node, String message) {
+		int token = this.tree.token(node);
+		if (token == Tree.NONE) {
+			diagnostics.error(message);
+			return;
+		}
+		diagnostics.error(this.tree.tokens().lineNum(token), this.tree.tokens().column(token), message);
+	}
+
+	String name(int node) {
+		return this.tree.symbol(node).name;
+	}
+
+	String typeName(int type) {
+		switch (type) {
+		case Elaborator.INT:
+			return "int";
+		case Elaborator.BOOLEAN:
+			return "boolean";
+		case Elaborator.INT_ARRAY:
+			return "int[]";
+		case Elaborator.STRING_ARRAY:
+			return "String[]";
+		default:
+			return this.name(this.classNodes[type]);
+		}
+	}
+
+	// whether "clazz" is "ancestor", or inherits from it
+	boolean inherits(int clazz, int ancestor) {
+		for (int c = clazz; c != Elaborator.ERROR; c = this.supers[c]) {
+			if (c == ancestor)
+				return true;
+		}
+		return false;
+	}
+
+	// whether a value of type "from" can be used as a "to"
+	boolean assignable(int from, int to) {
+		if (from == to || from == Elaborator.ERROR || to == Elaborator.ERROR)
+			return true;
+		return from >= 0 && to >= 0 && this.inherits(from, to);
+	}
+
+	// the type named by the type node "n"
+	int type(int n, Diagnostics diagnostics) {
+		switch (this.tree.tag(n)) {
+		case INT_TYPE:
+			return Elaborator.INT;
+		case BOOLEAN_TYPE:
+			return Elaborator.BOOLEAN;
+		case INT_ARRAY_TYPE:
+			return Elaborator.INT_ARRAY;
+		default:
+			int clazz = this.classes.get(this.tree.symbolId(n));
+			if (clazz == Table.ABSENT) {
+				this.error(diagnostics, n, "cannot find symbol: class " + this.name(n));
+				return Elaborator.ERROR;
+			}
+			return clazz;
+		}
+	}
+
+	// the method "name" of "clazz", which may be inherited, or ABSENT
+	int method(int clazz, int name) {
+		for (int c = clazz; c != Elaborator.ERROR; c = this.supers[c]) {
+			int m = this.methods.get(Table.key(c, name));
+			if (m != Table.ABSENT)
+				return m;
+		}
+		return Table.ABSENT;
+	}
+
+	// the method of the METHOD node "m" of "clazz", or ABSENT if it
+	// is a duplicate, which has no signature
+	int declared(int clazz, int m) {
+		int i = this.methods.get(Table.key(clazz, this.tree.symbolId(m)));
+		return i != Table.ABSENT && this.methodNodes[i] == m ? i : Table.ABSENT;
+	}
+
+	// the type of the field "name" of "clazz", which may be inherited,
+	// or ABSENT
+	int field(int clazz, int name) {
+		for (int c = clazz; c != Elaborator.ERROR; c = this.supers[c]) {
+			int type = this.fields.get(Table.key(c, name));
+			if (type != Table.ABSENT)
+				return type;
+		}
+		return Table.ABSENT;
+	}
+
+	// /////////////////////////////////////////////
+	// building
+
+	private void buildClasses(int program, Diagnostics diagnostics) {
+		int count = this.tree.countChildren(program);
+		this.classNodes = new int[count];
+		this.supers = new int[count];
+		this.classes = new Table(count);
+		for (int c = this.tree.child(program); c != Tree.NONE; c = this.tree.next(c)) {
+			if (this.tree.tag(c) == Tag.ERROR)
+				continue;
+			if (!this.classes.put(this.tree.symbolId(c), this.nclasses)) {
+				this.error(diagnostics, c, "duplicate class: " + this.name(c));
+				continue;
+			}
+			this.classNodes[this.nclasses] = c;
+			this.supers[this.nclasses] = Elaborator.ERROR;
+			this.nclasses++;
+		}
+
+		for (int k = 0; k < this.nclasses; k++) {
+			int c = this.classNodes[k];
+			if (this.tree.tag(c) != Tag.CLASS)
+				continue;
+			int extend = this.tree.child(c, 2);
+			if (extend == Tree.NONE)
+				continue;
+			int superclass = this.classes.get(this.tree.symbolId(extend));
+			if (superclass == Table.ABSENT)
+				this.error(diagnostics, extend, "cannot find symbol: class " + this.name(extend));
+			else if (this.tree.tag(this.classNodes[superclass]) == Tag.MAIN_CLASS)
+				this.error(diagnostics, extend, "cannot inherit from the main class " + this.name(extend));
+			else
+				this.supers[k] = superclass;
+		}
+
+		// break the cycles, so that the superclasses can be walked up:
+		// a class in a cycle is found again within "nclasses" steps
+		for (int k = 0; k < this.nclasses; k++) {
+			int c = this.supers[k];
+			for (int steps = 0; c != Elaborator.ERROR && c != k && steps < this.nclasses; steps++)
+				c = this.supers[c];
+			if (c == k) {
+				this.error(diagnostics, this.classNodes[k], "cyclic inheritance involving " + this.typeName(k));
+				this.supers[k] = Elaborator.ERROR;
+			}
+		}
+	}
+
+	private void buildMembers(Diagnostics diagnostics) {
+		this.fields = new Table(this.nclasses);
+		this.methods = new Table(this.nclasses);
+		this.returns = new int[16];
+		this.firstParams = new int[16];
+		this.nparams = new int[16];
+		this.methodNodes = new int[16];
+		this.params = new int[16];
+
+		for (int k = 0; k < this.nclasses; k++) {
+			int c = this.classNodes[k];
+			if (this.tree.tag(c) != Tag.CLASS)
+				continue;
+			for (int v = this.tree.child(this.tree.child(c, 0)); v != Tree.NONE; v = this.tree.next(v)) {
+				if (this.tree.tag(v) == Tag.ERROR)
+					continue;
+				int type = this.type(this.tree.child(v), diagnostics);
+				if (!this.fields.put(Table.key(k, this.tree.symbolId(v)), type))
+					this.error(diagnostics, v, "duplicate field: " + this.name(v));
+			}
+			for (int m = this.tree.child(this.tree.child(c, 1)); m != Tree.NONE; m = this.tree.next(m)) {
+				if (this.tree.tag(m) == Tag.ERROR)
+					continue;
+				if (!this.methods.put(Table.key(k, this.tree.symbolId(m)), this.nmethods)) {
+					this.error(diagnostics, m, "duplicate method: " + this.name(m));
+					continue;
+				}
+				this.addMethod(m, diagnostics);
+			}
+		}
+	}
+
+	private void addMethod(int m, Diagnostics diagnostics) {
+		int i = this.nmethods++;
+		if (i == this.returns.length) {
+			this.returns = Arrays.copyOf(this.returns, 2 * i);
+			this.firstParams = Arrays.copyOf(this.firstParams, 2 * i);
+			this.nparams = Arrays.copyOf(this.nparams, 2 * i);
+			this.methodNodes = Arrays.copyOf(this.methodNodes, 2 * i);
+		}
+		this.returns[i] = this.type(this.tree.child(m, 0), diagnostics);
+		this.firstParams[i] = this.size;
+		this.methodNodes[i] = m;
+		for (int f = this.tree.child(this.tree.child(m, 1)); f != Tree.NONE; f = this.tree.next(f)) {
+			if (this.size == this.params.length)
+				this.params = Arrays.copyOf(this.params, 2 * this.size);
+			this.params[this.size++] = this.type(this.tree.child(f), diagnostics);
+		}
+		this.nparams[i] = this.size - this.firstParams[i];
+	}
+
+	// a method which overrides another one has the same formals and
+	// return type
+	private void checkOverrides(Diagnostics diagnostics) {
+		for (int k = 0; k < this.nclasses; k++) {
+			if (this.supers[k] == Elaborator.ERROR)
+				continue;
+			int c = this.classNodes[k];
+			for (int m = this.tree.child(this.tree.child(c, 1)); m != Tree.NONE; m = this.tree.next(m)) {
+				if (this.tree.tag(m) == Tag.ERROR)
+					continue;
+				int name = this.tree.symbolId(m);
+				int i = this.methods.get(Table.key(k, name));
+				int overridden = this.method(this.supers[k], name);
+				if (overridden == Table.ABSENT || this.methodNodes[i] != m)
+					continue;
+				if (!this.sameSignature(i, overridden))
+					this.error(diagnostics, m, "method " + this.name(m) + " of " + this.typeName(k)
+							+ " overrides a method of another type in " + this.typeName(this.supers[k]));
+			}
+		}
+	}
+
+	private boolean sameSignature(int a, int b) {
+		if (this.returns[a] != this.returns[b] || this.nparams[a] != this.nparams[b])
+			return false;
+		for (int p = 0; p < this.nparams[a]; p++) {
+			if (this.params[this.firstParams[a] + p] != this.params[this.firstParams[b] + p])
+				return false;
+		}
+		return true;
+	}
+}
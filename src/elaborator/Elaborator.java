@@ -0,0 +1,469 @@
+package elaborator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ast.Tag;
+import ast.Tree;
+import control.Control;
+import util.Diagnostics;
+
+// The type checker, which elaborates the tree of a program that has
+// been parsed without errors. It builds the "ClassTable" of the
+// program, then checks each method with the table of its formals and
+// locals. The errors go to "diagnostics".
+//
+// The names are looked up by the ids of their symbols, in "Table"s
+// keyed by them, so checking a program allocates about nothing but the
+// tables, and takes a time linear in its size (times the depth of
+// inheritance).
+//
+// Once the class table is built, the classes can be checked in any
+// order: with several jobs, groups of classes are checked by the
+// threads of a pool, each with an elaborator of its own, and their
+// errors are added to "diagnostics" in the order of the classes.
+//
+// A type is an int: a class is its index in the class table, and the
+// other types are negative. ERROR is the type of what has failed to
+// check, which goes with any type, so that an error is only reported
+// once.
+//
+// In a tree whose expressions are shared, an expression is checked
+// once in each method, the first time it is met: a REF to it gets the
+// type it had, and the errors found in it again, reported at the REF,
+// rather than at the places of the first expression.
+public class Elaborator {
+	static final int ERROR = -1, INT = -2, BOOLEAN = -3, INT_ARRAY = -4, STRING_ARRAY = -5;
+
+	private Tree tree;
+	private Diagnostics diagnostics;
+	private int jobs; // number of threads to check the classes
+	private ClassTable table; // the classes, once built
+
+	private Table locals; // name -> type, in the method checked
+	private int current; // the class of the method checked
+	private boolean isStatic; // whether it is "main"
+
+	// the expressions being checked, see "checkExp"
+	private static final int FRAME = 4;
+	private int[] frames = new int[FRAME * 16];
+	private int[] types = new int[16];
+
+	// the expressions checked in the method, when they may be shared
+	private Table checked; // node -> index in "results", or null
+	private int[] results; // the type of each, and its errors in
+							// "messages"
+	private int nresults;
+	private List<String> messages; // the errors found in the method
+
+	public Elaborator(Tree tree, Diagnostics diagnostics) {
+		this.tree = tree;
+		this.diagnostics = diagnostics;
+		this.jobs = Control.ConElab.jobs;
+	}
+
+	// check some classes of "table", on a thread of a pool
+	private Elaborator(Tree tree, ClassTable table, Diagnostics diagnostics) {
+		this.tree = tree;
+		this.diagnostics = diagnostics;
+		this.jobs = 1;
+		this.table = table;
+	}
+
+	private void error(int node, String message) {
+		this.table.error(this.diagnostics, node, message);
+		if (this.messages != null)
+			this.messages.add(message);
+	}
+
+	private String name(int node) {
+		return this.tree.symbol(node).name;
+	}
+
+	private void expect(int node, int type, int expected) {
+		if (!this.table.assignable(type, expected))
+			this.error(node, "incompatible types: " + this.table.typeName(type) + " cannot be converted to "
+					+ this.table.typeName(expected));
+	}
+
+	private int type(int n) {
+		return this.table.type(n, this.diagnostics);
+	}
+
+	// /////////////////////////////////////////////
+	// the program
+
+	// Check the program, and return whether it has no errors.
+	public boolean check() {
+		int errors = this.diagnostics.count();
+		this.table = new ClassTable(this.tree, this.diagnostics);
+
+		int program = this.tree.root();
+		int[] decls = new int[this.tree.countChildren(program)];
+		int count = 0;
+		for (int c = this.tree.child(program); c != Tree.NONE; c = this.tree.next(c))
+			decls[count++] = c;
+		if (this.jobs > 1 && count > 1) {
+			// the threads only read the ids of the symbols
+			this.tree.tokens().intern();
+			this.checkParallel(decls);
+		}
+		else
+			this.checkDecls(decls, 0, count);
+		return this.diagnostics.count() == errors;
+	}
+
+	private void checkDecls(int[] decls, int from, int to) {
+		this.locals = new Table(16);
+		if (this.tree.sharing()) {
+			this.checked = new Table(64);
+			this.results = new int[3 * 64];
+			this.messages = new ArrayList<String>();
+		}
+		for (int i = from; i < to; i++) {
+			if (this.tree.tag(decls[i]) == Tag.MAIN_CLASS)
+				this.checkMain(decls[i]);
+			else if (this.tree.tag(decls[i]) == Tag.CLASS)
+				this.checkClass(decls[i]);
+		}
+	}
+
+	private void checkParallel(int[] decls) {
+		// a body parsed lazily adds nodes to the tree, which the
+		// threads can't do at once: the bodies are all parsed first
+		for (int c : decls) {
+			if (this.tree.tag(c) != Tag.CLASS)
+				continue;
+			for (int m = this.tree.child(this.tree.child(c, 1)); m != Tree.NONE; m = this.tree.next(m)) {
+				if (this.tree.tag(m) != Tag.ERROR)
+					this.tree.body(m);
+			}
+		}
+
+		// a few groups per thread, to balance the load
+		int count = decls.length;
+		int groups = Math.min(count, 4 * this.jobs);
+		List<Callable<Diagnostics>> tasks = new ArrayList<Callable<Diagnostics>>();
+		for (int g = 0; g < groups; g++) {
+			int from = (int) ((long) count * g / groups);
+			int to = (int) ((long) count * (g + 1) / groups);
+			tasks.add(() -> {
+				Diagnostics diagnostics = new Diagnostics(null);
+				new Elaborator(this.tree, this.table, diagnostics).checkDecls(decls, from, to);
+				return diagnostics;
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(this.jobs);
+		try {
+			for (Future<Diagnostics> future : pool.invokeAll(tasks))
+				this.diagnostics.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw new Error("checking the classes failed", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// /////////////////////////////////////////////
+	// classes and methods
+
+	private void checkMain(int main) {
+		this.current = this.table.classes.get(this.tree.symbolId(main));
+		this.isStatic = true;
+		this.locals.clear();
+		this.clearChecked();
+		this.locals.put(this.tree.symbolId(this.tree.child(main, 0)), STRING_ARRAY);
+		this.checkStm(this.tree.child(main, 1));
+	}
+
+	private void checkClass(int c) {
+		this.current = this.table.classes.get(this.tree.symbolId(c));
+		this.isStatic = false;
+		if (this.table.classNodes[this.current] != c)
+			// a duplicate class, which has no tables
+			return;
+		for (int m = this.tree.child(this.tree.child(c, 1)); m != Tree.NONE; m = this.tree.next(m)) {
+			if (this.tree.tag(m) != Tag.ERROR)
+				this.checkMethod(m);
+		}
+	}
+
+	private void checkMethod(int m) {
+		// the types of the signature are in the class table, where
+		// their errors have been reported already
+		int i = this.table.declared(this.current, m);
+		int param = i == Table.ABSENT ? 0 : this.table.firstParams[i];
+		this.locals.clear();
+		this.clearChecked();
+		for (int f = this.tree.child(this.tree.child(m, 1)); f != Tree.NONE; f = this.tree.next(f)) {
+			int type = i == Table.ABSENT ? this.type(this.tree.child(f)) : this.table.params[param++];
+			if (!this.locals.put(this.tree.symbolId(f), type))
+				this.error(f, "duplicate variable: " + this.name(f));
+		}
+
+		int body = this.tree.body(m);
+		if (this.tree.tag(this.tree.child(body)) == Tag.ERROR)
+			// a body parsed lazily, which doesn't parse
+			return;
+		for (int v = this.tree.child(this.tree.child(body, 0)); v != Tree.NONE; v = this.tree.next(v)) {
+			if (!this.locals.put(this.tree.symbolId(v), this.type(this.tree.child(v))))
+				this.error(v, "duplicate variable: " + this.name(v));
+		}
+		this.checkStm(this.tree.child(body, 1));
+
+		int exp = this.tree.child(body, 2);
+		int type = i == Table.ABSENT ? this.type(this.tree.child(m, 0)) : this.table.returns[i];
+		this.expect(exp, this.checkExp(exp), type);
+	}
+
+	// the type of the variable "name": a formal, a local or a field
+	private int variable(int node) {
+		int name = this.tree.symbolId(node);
+		int type = this.locals.get(name);
+		if (type == Table.ABSENT && !this.isStatic)
+			type = this.table.field(this.current, name);
+		if (type == Table.ABSENT) {
+			this.error(node, "cannot find symbol: variable " + this.name(node));
+			return ERROR;
+		}
+		return type;
+	}
+
+	// /////////////////////////////////////////////
+	// statements
+
+	private void checkStm(int s) {
+		switch (this.tree.tag(s)) {
+		case ASSIGN: {
+			int type = this.variable(s);
+			int exp = this.tree.child(s);
+			this.expect(exp, this.checkExp(exp), type);
+			break;
+		}
+		case ARRAY_ASSIGN: {
+			this.expect(s, this.variable(s), INT_ARRAY);
+			int index = this.tree.child(s);
+			this.expect(index, this.checkExp(index), INT);
+			int exp = this.tree.next(index);
+			this.expect(exp, this.checkExp(exp), INT);
+			break;
+		}
+		case BLOCK:
+			for (int c = this.tree.child(s); c != Tree.NONE; c = this.tree.next(c))
+				this.checkStm(c);
+			break;
+		case IF: {
+			int cond = this.tree.child(s);
+			this.expect(cond, this.checkExp(cond), BOOLEAN);
+			this.checkStm(this.tree.next(cond));
+			this.checkStm(this.tree.next(this.tree.next(cond)));
+			break;
+		}
+		case WHILE: {
+			int cond = this.tree.child(s);
+			this.expect(cond, this.checkExp(cond), BOOLEAN);
+			this.checkStm(this.tree.next(cond));
+			break;
+		}
+		case PRINT: {
+			int exp = this.tree.child(s);
+			this.expect(exp, this.checkExp(exp), INT);
+			break;
+		}
+		default:
+			// ERROR
+			break;
+		}
+	}
+
+	// /////////////////////////////////////////////
+	// expressions
+
+	// Return the type of the expression "e". The expressions may be
+	// nested as deep as the parser allows, so they are walked with an
+	// explicit stack: each frame is a node, its next child to check,
+	// where the types of its children start in "types", and where its
+	// errors start in "messages".
+	private int checkExp(int e) {
+		int nframes = 0;
+		int ntypes = 0;
+		int next = e; // the next node to check, or NONE
+		while (true) {
+			if (next == Tree.NONE) {
+				// the children of the last frame are checked
+				int f = FRAME * (nframes - 1);
+				int base = this.frames[f + 2];
+				int type = this.typeOf(this.frames[f], base, ntypes);
+				this.putChecked(this.frames[f], type, this.frames[f + 3]);
+				nframes--;
+				ntypes = this.pushType(base, type);
+			} else {
+				int type = this.getChecked(next);
+				if (type != Table.ABSENT)
+					ntypes = this.pushType(ntypes, type);
+				else {
+					int f = FRAME * nframes;
+					if (f == this.frames.length)
+						this.frames = Arrays.copyOf(this.frames, 2 * f);
+					this.frames[f] = next;
+					this.frames[f + 1] = this.tree.child(next);
+					this.frames[f + 2] = ntypes;
+					this.frames[f + 3] = this.messages == null ? 0 : this.messages.size();
+					nframes++;
+				}
+			}
+			if (nframes == 0)
+				return this.types[0];
+			int f = FRAME * (nframes - 1);
+			next = this.frames[f + 1];
+			if (next != Tree.NONE)
+				this.frames[f + 1] = this.tree.next(next);
+		}
+	}
+
+	// push "type" on the types from "ntypes", and return their number
+	private int pushType(int ntypes, int type) {
+		if (ntypes == this.types.length)
+			this.types = Arrays.copyOf(this.types, 2 * ntypes);
+		this.types[ntypes] = type;
+		return ntypes + 1;
+	}
+
+	// /////////////////////////////////////////////
+	// shared expressions
+
+	private void clearChecked() {
+		if (this.checked == null)
+			return;
+		this.checked.clear();
+		this.nresults = 0;
+		this.messages.clear();
+	}
+
+	// Return the type of "n", if it is a REF to an expression checked
+	// already, after reporting the errors found in it at "n"; otherwise
+	// return ABSENT, and "n" is to be checked.
+	private int getChecked(int n) {
+		if (this.checked == null)
+			return Table.ABSENT;
+		int node = this.tree.canonical(n);
+		if (node == n)
+			return Table.ABSENT;
+		int i = this.checked.get(node);
+		if (i == Table.ABSENT)
+			return Table.ABSENT;
+		for (int k = this.results[i + 1]; k < this.results[i + 2]; k++)
+			this.error(n, this.messages.get(k));
+		return this.results[i];
+	}
+
+	// Remember that the expression "e" has the type "type", and the
+	// errors from "from" in "messages".
+	private void putChecked(int e, int type, int from) {
+		if (this.checked == null || !this.checked.put(this.tree.canonical(e), this.nresults))
+			return;
+		if (this.nresults == this.results.length)
+			this.results = Arrays.copyOf(this.results, 2 * this.nresults);
+		this.results[this.nresults] = type;
+		this.results[this.nresults + 1] = from;
+		this.results[this.nresults + 2] = this.messages.size();
+		this.nresults += 3;
+	}
+
+	// the type of the expression "e", whose children have the types
+	// types[from, to)
+	private int typeOf(int e, int from, int to) {
+		int[] types = this.types;
+		int a = from < to ? types[from] : ERROR;
+		int b = from + 1 < to ? types[from + 1] : ERROR;
+
+		switch (this.tree.tag(e)) {
+		case ADD:
+		case SUB:
+		case TIMES:
+			this.expect(this.tree.child(e), a, INT);
+			this.expect(this.tree.child(e, 1), b, INT);
+			return INT;
+		case LT:
+			this.expect(this.tree.child(e), a, INT);
+			this.expect(this.tree.child(e, 1), b, INT);
+			return BOOLEAN;
+		case AND:
+			this.expect(this.tree.child(e), a, BOOLEAN);
+			this.expect(this.tree.child(e, 1), b, BOOLEAN);
+			return BOOLEAN;
+		case NOT:
+			this.expect(this.tree.child(e), a, BOOLEAN);
+			return BOOLEAN;
+		case ARRAY_SELECT:
+			this.expect(this.tree.child(e), a, INT_ARRAY);
+			this.expect(this.tree.child(e, 1), b, INT);
+			return INT;
+		case LENGTH:
+			this.expect(this.tree.child(e), a, INT_ARRAY);
+			return INT;
+		case NEW_INT_ARRAY:
+			this.expect(this.tree.child(e), a, INT);
+			return INT_ARRAY;
+		case NEW_OBJECT: {
+			int clazz = this.table.classes.get(this.tree.symbolId(e));
+			if (clazz != Table.ABSENT)
+				return clazz;
+			this.error(e, "cannot find symbol: class " + this.name(e));
+			return ERROR;
+		}
+		case CALL:
+			return this.call(e, from, to);
+		case ID:
+			return this.variable(e);
+		case NUM:
+			return INT;
+		case TRUE:
+		case FALSE:
+			return BOOLEAN;
+		case THIS:
+			if (this.isStatic) {
+				this.error(e, "non-static variable this cannot be referenced from a static context");
+				return ERROR;
+			}
+			return this.current;
+		default:
+			// ERROR
+			return ERROR;
+		}
+	}
+
+	// the type of the CALL "e", whose receiver and arguments have the
+	// types types[from, to)
+	private int call(int e, int from, int to) {
+		int receiver = this.types[from];
+		if (receiver == ERROR)
+			return ERROR;
+		if (receiver < 0) {
+			this.error(this.tree.child(e), this.table.typeName(receiver) + " cannot be dereferenced");
+			return ERROR;
+		}
+		int m = this.table.method(receiver, this.tree.symbolId(e));
+		if (m == Table.ABSENT) {
+			this.error(e, "cannot find symbol: method " + this.name(e) + " in class " + this.table.typeName(receiver));
+			return ERROR;
+		}
+
+		int nargs = to - from - 1;
+		if (nargs != this.table.nparams[m]) {
+			this.error(e, "method " + this.name(e) + " in class " + this.table.typeName(receiver) + " takes "
+					+ this.table.nparams[m] + " arguments, but " + nargs + " are given");
+			return this.table.returns[m];
+		}
+		int arg = this.tree.next(this.tree.child(e));
+		for (int p = 0; p < nargs; p++, arg = this.tree.next(arg))
+			this.expect(arg, this.types[from + 1 + p], this.table.params[this.table.firstParams[m] + p]);
+		return this.table.returns[m];
+	}
+}
@@ -0,0 +1,84 @@
+package elaborator;
+
+import java.util.Arrays;
+
+// A map from long keys to int values, by open addressing with linear
+// probing. The keys are symbol ids, or a class and a symbol id (see
+// "key"), so the tables of the elaborator are a few flat arrays, and
+// looking up a name never builds a string nor an object.
+final class Table {
+	static final int ABSENT = Integer.MIN_VALUE; // the value of no key
+	private static final long FREE = -1; // the key of a free slot
+
+	private long[] keys;
+	private int[] values;
+	private int mask; // number of slots - 1
+	private int[] used; // the slots taken, to clear them
+	private int count; // number of keys
+
+	Table(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(16, 2 * capacity - 1)) << 1;
+		this.keys = new long[slots];
+		this.values = new int[slots];
+		Arrays.fill(this.keys, FREE);
+		this.mask = slots - 1;
+		this.used = new int[16];
+	}
+
+	// the key of the name "symbol" in the class "clazz"
+	static long key(int clazz, int symbol) {
+		return (long) clazz << 32 | symbol;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		int i = (int) (h ^ (h >>> 32)) & this.mask;
+		while (this.keys[i] != FREE && this.keys[i] != key)
+			i = (i + 1) & this.mask;
+		return i;
+	}
+
+	int get(long key) {
+		int i = this.slot(key);
+		return this.keys[i] == FREE ? ABSENT : this.values[i];
+	}
+
+	// Map "key" to "value", unless it is mapped already: return whether
+	// it wasn't.
+	boolean put(long key, int value) {
+		int i = this.slot(key);
+		if (this.keys[i] != FREE)
+			return false;
+		this.keys[i] = key;
+		this.values[i] = value;
+		if (this.count == this.used.length)
+			this.used = Arrays.copyOf(this.used, 2 * this.count);
+		this.used[this.count++] = i;
+		if (2 * this.count > this.mask)
+			this.grow();
+		return true;
+	}
+
+	private void grow() {
+		long[] keys = this.keys;
+		int[] values = this.values;
+		int[] used = this.used;
+		int count = this.count;
+
+		this.keys = new long[2 * keys.length];
+		this.values = new int[2 * keys.length];
+		Arrays.fill(this.keys, FREE);
+		this.mask = this.keys.length - 1;
+		this.used = new int[used.length];
+		this.count = 0;
+		for (int k = 0; k < count; k++)
+			this.put(keys[used[k]], values[used[k]]);
+	}
+
+	// remove all the keys, in the time of their number
+	void clear() {
+		for (int k = 0; k < this.count; k++)
+			this.keys[this.used[k]] = FREE;
+		this.count = 0;
+	}
+}
@@ -0,0 +1,163 @@
+package lexer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import lexer.Token.Kind;
+import util.Bug;
+
+// The tables driving the lexer: a deterministic automaton over classes
+// of characters, built from the spellings of the tokens in "Token.Kind".
+// The lexer takes one transition per character, with two table lookups,
+// until the automaton stops at the end of a token.
+//
+// The automaton works on bytes, and knows ASCII only. Bytes of UTF-8
+// sequences are skipped in comments (they are never mistaken for ASCII
+// characters) and hand identifiers over to the lexer, which decodes them.
+class Dfa {
+	// character classes, followed by one class for each character
+	// used in the spelling of an operator
+	static final int C_EOF = 0;
+	static final int C_OTHER = 1;
+	static final int C_BLANK = 2;
+	static final int C_NEWLINE = 3;
+	static final int C_LETTER = 4;
+	static final int C_DIGIT = 5;
+	static final int C_UNDERSCORE = 6;
+	static final int C_SLASH = 7;
+	static final int C_HIGH = 8; // bytes 0x80-0xff, which are part of
+									// UTF-8 sequences
+	static final int NCLASSES;
+
+	// states, followed by one state for each prefix of an operator
+	static final int S_START = 0; // blanks between tokens
+	static final int S_SLASH = 1; // "/"
+	static final int S_LINE = 2; // "// ..."
+	static final int S_BLOCK = 3; // "/* ..."
+	static final int S_BLOCK_STAR = 4; // "/* ... *"
+	static final int S_ID = 5;
+	static final int S_NUM = 6;
+	static final int NSTATES;
+
+	// transitions which don't lead to a state: the token is an
+	// identifier with non-ASCII characters, which the lexer decodes
+	// itself; the token ends right before the current character;
+	// or the characters scanned so far are no token at all
+	static final int WIDE = 125;
+	static final int STOP = 126;
+	static final int ERROR = 127;
+
+	// The class of character "c" is classes[c + 1], so that the
+	// end of the source (-1) has a class as well.
+	static final byte[] classes = new byte[257];
+	// The state reached from state "s" on a character of class "k"
+	// is delta[s * NCLASSES + k], or STOP, or ERROR.
+	static final byte[] delta;
+	// the kind of the token which ends in each state, if any
+	static final Kind[] accept;
+
+	static {
+		HashMap<String, Integer> prefixes = new HashMap<String, Integer>();
+		int nclasses = C_HIGH + 1;
+		int nstates = S_NUM + 1;
+
+		// give a class to each character of the operators, and a
+		// state to each of their prefixes
+		Arrays.fill(classes, (byte) C_OTHER);
+		for (Kind kind : Kind.values()) {
+			String s = kind.spelling;
+			if (s == null || Character.isLetter(s.charAt(0)))
+				continue;
+			for (int i = 0; i < s.length(); i++) {
+				if (classes[s.charAt(i) + 1] == C_OTHER)
+					classes[s.charAt(i) + 1] = (byte) nclasses++;
+				if (!prefixes.containsKey(s.substring(0, i + 1)))
+					prefixes.put(s.substring(0, i + 1), nstates++);
+			}
+		}
+		classes[0] = C_EOF;
+		classes[' ' + 1] = classes['\t' + 1] = classes['\r' + 1] = C_BLANK;
+		classes['\n' + 1] = C_NEWLINE;
+		classes['_' + 1] = C_UNDERSCORE;
+		classes['/' + 1] = C_SLASH;
+		for (int c = 'a'; c <= 'z'; c++)
+			classes[c + 1] = C_LETTER;
+		for (int c = 'A'; c <= 'Z'; c++)
+			classes[c + 1] = C_LETTER;
+		for (int c = '0'; c <= '9'; c++)
+			classes[c + 1] = C_DIGIT;
+		for (int c = 0x80; c <= 0xff; c++)
+			classes[c + 1] = C_HIGH;
+		if (nstates >= WIDE)
+			new Bug();
+
+		NCLASSES = nclasses;
+		NSTATES = nstates;
+		delta = new byte[NSTATES * NCLASSES];
+		accept = new Kind[NSTATES];
+		Arrays.fill(delta, (byte) ERROR);
+		int star = classes['*' + 1];
+
+		set(S_START, C_BLANK, S_START);
+		set(S_START, C_NEWLINE, S_START);
+		set(S_START, C_SLASH, S_SLASH);
+		set(S_START, C_LETTER, S_ID);
+		set(S_START, C_DIGIT, S_NUM);
+		set(S_START, C_HIGH, WIDE);
+		set(S_START, C_EOF, STOP);
+		accept[S_START] = Kind.TOKEN_EOF;
+
+		set(S_SLASH, C_SLASH, S_LINE);
+		set(S_SLASH, star, S_BLOCK);
+
+		setAll(S_LINE, S_LINE);
+		set(S_LINE, C_NEWLINE, S_START);
+		set(S_LINE, C_EOF, STOP);
+		accept[S_LINE] = Kind.TOKEN_EOF;
+
+		setAll(S_BLOCK, S_BLOCK);
+		set(S_BLOCK, star, S_BLOCK_STAR);
+		set(S_BLOCK, C_EOF, ERROR);
+
+		setAll(S_BLOCK_STAR, S_BLOCK);
+		set(S_BLOCK_STAR, star, S_BLOCK_STAR);
+		set(S_BLOCK_STAR, C_SLASH, S_START);
+		set(S_BLOCK_STAR, C_EOF, ERROR);
+
+		setAll(S_ID, STOP);
+		set(S_ID, C_LETTER, S_ID);
+		set(S_ID, C_DIGIT, S_ID);
+		set(S_ID, C_UNDERSCORE, S_ID);
+		set(S_ID, C_HIGH, WIDE);
+		accept[S_ID] = Kind.TOKEN_ID;
+
+		setAll(S_NUM, STOP);
+		set(S_NUM, C_DIGIT, S_NUM);
+		accept[S_NUM] = Kind.TOKEN_NUM;
+
+		// operators: an operator ends as soon as it can't be
+		// extended to a longer one
+		for (Kind kind : Kind.values()) {
+			if (kind.spelling != null && prefixes.containsKey(kind.spelling))
+				accept[prefixes.get(kind.spelling)] = kind;
+		}
+		for (String prefix : prefixes.keySet()) {
+			int state = prefixes.get(prefix);
+			if (accept[state] != null)
+				setAll(state, STOP);
+		}
+		for (String prefix : prefixes.keySet()) {
+			int from = prefix.length() == 1 ? S_START : prefixes.get(prefix.substring(0, prefix.length() - 1));
+			char c = prefix.charAt(prefix.length() - 1);
+			set(from, classes[c + 1], prefixes.get(prefix));
+		}
+	}
+
+	private static void set(int state, int cls, int next) {
+		delta[state * NCLASSES + cls] = (byte) next;
+	}
+
+	private static void setAll(int state, int next) {
+		Arrays.fill(delta, state * NCLASSES, (state + 1) * NCLASSES, (byte) next);
+	}
+}
@@ -0,0 +1,29 @@
+package lexer;
+
+import java.nio.charset.StandardCharsets;
+
+// An edit of a source file: the "removed" bytes at "offset" are
+// replaced by "inserted", encoded in UTF-8.
+public class Edit {
+	public int offset;
+	public int removed;
+	public byte[] inserted;
+
+	// Filled in by "Lexer.relex": the tokens [first, oldEnd) of the old
+	// token stream have been replaced by the tokens [first, newEnd) of
+	// the new one. The tokens after them are the same in both streams.
+	public int first;
+	public int oldEnd;
+	public int newEnd;
+
+	public Edit(int offset, int removed, String inserted) {
+		this.offset = offset;
+		this.removed = removed;
+		this.inserted = inserted.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// the change in the length of the source
+	public int delta() {
+		return this.inserted.length - this.removed;
+	}
+}
@@ -0,0 +1,52 @@
+package lexer;
+
+import lexer.Token.Kind;
+import util.Bug;
+
+// Recognize the MiniJava keywords with a perfect hash on the length,
+// the first and the last characters of a word. Every keyword owns its
+// own slot of the table, so a word is compared against at most one
+// keyword, right on the bytes of the source.
+class Keywords {
+	private static final int SIZE = 32;
+	private static final byte[][] words = new byte[SIZE][];
+	private static final Kind[] kinds = new Kind[SIZE];
+
+	static {
+		for (Kind kind : Kind.values()) {
+			if (kind.spelling != null && Character.isLetter(kind.spelling.charAt(0)))
+				add(kind.spelling, kind);
+		}
+	}
+
+	// The constants are chosen such that no two keywords collide,
+	// which "add" checks. Keep them in sync when adding keywords.
+	private static int hash(int length, int first, int last) {
+		return (length * 2 + first * 8 + last * 7) & (SIZE - 1);
+	}
+
+	private static void add(String word, Kind kind) {
+		int h = hash(word.length(), word.charAt(0), word.charAt(word.length() - 1));
+
+		if (kinds[h] != null)
+			new Bug();
+		words[h] = word.getBytes();
+		kinds[h] = kind;
+	}
+
+	// Return the kind of the keyword spelled by the "length"
+	// characters at "offset" in "src", or TOKEN_ID if these
+	// characters are not a keyword.
+	static Kind lookup(Source src, int offset, int length) {
+		int h = hash(length, src.at(offset), src.at(offset + length - 1));
+		byte[] word = words[h];
+
+		if (word == null || word.length != length)
+			return Kind.TOKEN_ID;
+		for (int i = 0; i < length; i++) {
+			if (src.at(offset + i) != word[i])
+				return Kind.TOKEN_ID;
+		}
+		return kinds[h];
+	}
+}
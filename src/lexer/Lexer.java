@@ -2,239 +2,564 @@ package lexer;
 
 import static control.Control.ConLexer.dump;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import lexer.Token.Kind;
-import util.Todo;
+import util.ByteWriter;
+import util.Diagnostics;
+import control.Control;
 
 public class Lexer {
 	String fname; // the input file name to be compiled
-	InputStream fstream; // input stream for the above file
+	Source src; // the whole content of the above file
+	int pos; // index of the next character to scan in "src"
 	int lineNum; // current line number
-	int backCh;
+
+	// the last token scanned spans [start, pos) of "src"
+	int start;
+	int value; // the value of the last TOKEN_NUM scanned
+	Diagnostics diagnostics; // where the errors go
 
 	public Lexer(String fname, InputStream fstream) {
+		this(fname, fstream, new Diagnostics(fname));
+	}
+
+	public Lexer(String fname, InputStream fstream, Diagnostics diagnostics) {
 		this.fname = fname;
-		this.fstream = fstream;
+		this.diagnostics = diagnostics;
+		try {
+			this.src = Source.read(fstream);
+		} catch (IOException e) {
+			diagnostics.error("can't read the file: " + e.getMessage());
+			this.src = new Source.Array(new byte[0], 0);
+		}
+		this.pos = 0;
 		this.lineNum = 1;
-		this.backCh = -2;
 	}
 
-	// When called, return the next token (refer to the code "Token.java")
-	// from the input stream.
-	// Return TOKEN_EOF when reaching the end of the input stream.
-	private Token nextTokenInternal() throws Exception {
-		int c;
+	public Lexer(String fname, Source src) {
+		this(fname, src, new Diagnostics(fname));
+	}
 
-		if (this.backCh != -2) {
-			c = this.backCh;
-			this.backCh = -2;
-		} else {
-			c = this.fstream.read();
-		}
+	public Lexer(String fname, Source src, Diagnostics diagnostics) {
+		this.fname = fname;
+		this.src = src;
+		this.diagnostics = diagnostics;
+		this.pos = 0;
+		this.lineNum = 1;
+	}
+
+	public Source source() {
+		return this.src;
+	}
+
+	public Diagnostics diagnostics() {
+		return this.diagnostics;
+	}
+
+	// report an error at "offset" of the source
+	private void error(int offset, String message) {
+		this.diagnostics.error(this.src.line(offset), this.src.column(offset), message);
+	}
+
+	// Tracing is fixed when the lexer is loaded, which is after the
+	// command line has been scanned. Being a constant, it costs nothing
+	// when it's off: the JIT drops the tracing code altogether.
+	//
+	// The tokens are traced as they are taken by the thread which reads
+	// them, not by the threads which scan chunks, whose tokens may be
+	// thrown away: "ByteWriter.out" is for a single thread.
+	private static final boolean TRACE = Control.ConLexer.trace;
+
+	// trace the token which starts at "start" in "src"
+	private static void trace(Source src, int start) {
+		int c = src.at(start);
+		ByteWriter out = ByteWriter.out;
+
+		out.write("start ch : ");
+		out.write(c);
+		out.write(" : ");
+		out.writeInt(c);
+		out.newline();
+	}
+
+	// When called, scan the next token from the source, and return
+	// its kind. The token spans [this.start, this.pos) of the source.
+	// Return TOKEN_EOF when reaching the end of the source.
+	//
+	// Blanks, comments and tokens are all recognized by the automaton
+	// in "Dfa", which stops right after the end of a token.
+	//
+	// On an error which leaves no token, throw an exception, with the
+	// error at "this.start" and "this.pos" past it.
+	private Kind scan() throws Exception {
+		Source src = this.src;
+		byte[] classes = Dfa.classes;
+		byte[] delta = Dfa.delta;
+		int nclasses = Dfa.NCLASSES;
+		int pos = this.pos;
+		int start = pos;
+		int state = Dfa.S_START;
+		int next;
 
-		// handle comment, space, tab, newline, eof
 		while (true) {
-			if (-1 == c)
-				// The value for "lineNum" is now "null",
-				// you should modify this to an appropriate
-				// line number for the "EOF" token.
-				return new Token(Kind.TOKEN_EOF, lineNum);
-
-			// skip all kinds of "blanks"
-			while (' ' == c || '\t' == c || '\n' == c || '\r' == c) {
-				if ('\n' == c)
-					lineNum++;
-				c = this.fstream.read();
-			}
-			if (-1 == c)
-				return new Token(Kind.TOKEN_EOF, lineNum);
+			int c = src.at(pos);
+			next = delta[state * nclasses + classes[c + 1]];
+			if (next >= Dfa.WIDE)
+				break;
+			if ('\n' == c)
+				this.lineNum++;
+			pos++;
+			state = next;
 
-			if (c != '/')
+			// between tokens, skip over runs of blanks and
+			// comments a word at a time
+			switch (state) {
+			case Dfa.S_START:
+				pos = this.skipBlanks(pos);
+				start = pos;
+				break;
+			case Dfa.S_LINE:
+				pos = this.skipTo(pos, '\n');
+				break;
+			case Dfa.S_BLOCK:
+				pos = this.skipTo(pos, '*');
 				break;
+			default:
+				break;
+			}
+		}
+		this.pos = pos;
 
-			c = this.fstream.read();
+		if (next == Dfa.WIDE) {
+			// an identifier with non-ASCII characters, which
+			// can't be a keyword
+			this.pos = this.scanWide(start, pos);
+			this.start = start;
+			return Kind.TOKEN_ID;
+		}
+		if (next == Dfa.ERROR) {
+			this.start = start;
+			if (state == Dfa.S_BLOCK || state == Dfa.S_BLOCK_STAR)
+				throw new Exception("unterminated comment");
+			// an unknown symbol, or the start of one
+			if (pos > start)
+				throw new Exception("illegal symbol: " + src.string(start, pos - start));
+			this.pos = pos + 1;
+			throw new Exception("illegal character: " + src.string(pos, 1));
+		}
 
-			if (c == '/') {
-				// //...
-				while (c != -1 && c != '\n') {
-					c = this.fstream.read();
+		Kind kind = Dfa.accept[state];
+		if (kind == Kind.TOKEN_EOF) {
+			this.start = pos;
+			return kind;
+		}
+		this.start = start;
+
+		switch (kind) {
+		case TOKEN_ID:
+			return Keywords.lookup(src, start, pos - start);
+		case TOKEN_NUM: {
+			int value = 0;
+			for (int i = start; i < pos; i++) {
+				int d = src.at(i) - '0';
+				if (value > (Integer.MAX_VALUE - d) / 10) {
+					this.error(start, "integer literal too large: " + src.string(start, pos - start));
+					value = 0;
+					break;
 				}
-			} else if (c == '*') {
-				// /*...*/
-				new Todo();
-			} else {
-				throw new Exception();
+				value = value * 10 + d;
 			}
+			if (src.at(start) == '0' && pos - start > 1)
+				this.error(start, "integer literal with a leading zero: " + src.string(start, pos - start));
+			this.value = value;
+			return kind;
+		}
+		default:
+			return kind;
 		}
+	}
+
+	// /////////////////////////////////////////////////////
+	// identifiers with non-ASCII characters, which are decoded
+	// from UTF-8 (only these identifiers leave the ASCII fast path)
+
+	// Scan the identifier which starts at "start", from "pos", where
+	// the first non-ASCII character is. Return the end of the identifier.
+	private int scanWide(int start, int pos) throws Exception {
+		Source src = this.src;
 
-		/*
-		 * special token + - * = < && . , ! [] () {} ;
-		 */
-		Token token = null;
-		System.out.println("start ch : " + String.valueOf((char) c) + " : " + c);
-		switch (c) {
-		case '+':
-			token = new Token(Kind.TOKEN_ADD, lineNum);
-			break;
-		case '-':
-			token = new Token(Kind.TOKEN_SUB, lineNum);
-			break;
-		case '*':
-			token = new Token(Kind.TOKEN_TIMES, lineNum);
-			break;
-		case '=':
-			token = new Token(Kind.TOKEN_ASSIGN, lineNum);
-			break;
-		case '<':
-			token = new Token(Kind.TOKEN_LT, lineNum);
-			break;
-		case '&':
-			c = this.fstream.read();
-			if (c != '&') {
-				throw new Exception();
+		while (true) {
+			int c = src.at(pos);
+			if (c < 0x80) {
+				// ASCII letters, digits and "_" go on
+				int cls = Dfa.classes[c + 1];
+				if (cls != Dfa.C_LETTER && cls != Dfa.C_DIGIT && cls != Dfa.C_UNDERSCORE)
+					return pos;
+				pos++;
+				continue;
 			}
-			token = new Token(Kind.TOKEN_AND, lineNum);
-		case '.':
-			token = new Token(Kind.TOKEN_DOT, lineNum);
-			break;
-		case ',':
-			token = new Token(Kind.TOKEN_COMMER, lineNum);
-			break;
-		case '!':
-			token = new Token(Kind.TOKEN_NOT, lineNum);
-			break;
-		case '{':
-			token = new Token(Kind.TOKEN_LBRACE, lineNum);
-			break;
-		case '[':
-			token = new Token(Kind.TOKEN_LBRACK, lineNum);
-			break;
-		case '(':
-			token = new Token(Kind.TOKEN_LPAREN, lineNum);
-			break;
-		case '}':
-			token = new Token(Kind.TOKEN_RBRACE, lineNum);
-			break;
-		case ']':
-			token = new Token(Kind.TOKEN_RBRACK, lineNum);
-			break;
-		case ')':
-			token = new Token(Kind.TOKEN_RPAREN, lineNum);
-			break;
-		case ';':
-			token = new Token(Kind.TOKEN_SEMI, lineNum);
-			break;
-		}
-
-		if (token == null) {
-			String lexeme = "";
-
-			if (c >= '0' && c <= '9') {
-				while (c >= '0' && c <= '9') {
-					lexeme += String.valueOf((char) c);
-					c = this.fstream.read();
-				}
-				if (lexeme.startsWith("0") && !lexeme.equals("0")) {
-					System.out.println("lexeme : " + lexeme);
-					throw new Exception();
-				}
-				token = new Token(Kind.TOKEN_NUM, lineNum, lexeme);
-				this.backCh = c;
-			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
-				while ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
-					lexeme += String.valueOf((char) c);
-					c = this.fstream.read();
-				}
-				this.backCh = c;
-				switch (lexeme) {
-				case "boolean":
-					token = new Token(Kind.TOKEN_BOOLEAN, lineNum);
-					break;
-				case "class":
-					token = new Token(Kind.TOKEN_CLASS, lineNum);
-					break;
-				case "else":
-					token = new Token(Kind.TOKEN_ELSE, lineNum);
-					break;
-				case "extends":
-					token = new Token(Kind.TOKEN_EXTENDS, lineNum);
-					break;
-				case "false":
-					token = new Token(Kind.TOKEN_FALSE, lineNum);
-					break;
-				case "if":
-					token = new Token(Kind.TOKEN_IF, lineNum);
-					break;
-				case "int":
-					token = new Token(Kind.TOKEN_INT, lineNum);
-					break;
-				case "length":
-					token = new Token(Kind.TOKEN_LENGTH, lineNum);
-					break;
-				case "main":
-					token = new Token(Kind.TOKEN_MAIN, lineNum);
-					break;
-				case "new":
-					token = new Token(Kind.TOKEN_NEW, lineNum);
-					break;
-				case "out":
-					token = new Token(Kind.TOKEN_OUT, lineNum);
-					break;
-				case "println":
-					token = new Token(Kind.TOKEN_PRINTLN, lineNum);
-					break;
-				case "public":
-					token = new Token(Kind.TOKEN_PUBLIC, lineNum);
-					break;
-				case "return":
-					token = new Token(Kind.TOKEN_RETURN, lineNum);
-					break;
-				case "static":
-					token = new Token(Kind.TOKEN_STATIC, lineNum);
-					break;
-				case "String":
-					token = new Token(Kind.TOKEN_STRING, lineNum);
-					break;
-				case "System":
-					token = new Token(Kind.TOKEN_SYSTEM, lineNum);
-					break;
-				case "this":
-					token = new Token(Kind.TOKEN_THIS, lineNum);
-					break;
-				case "true":
-					token = new Token(Kind.TOKEN_TRUE, lineNum);
-					break;
-				case "void":
-					token = new Token(Kind.TOKEN_VOID, lineNum);
-					break;
-				case "while":
-					token = new Token(Kind.TOKEN_WHILE, lineNum);
-					break;
-				default:
-					token = new Token(Kind.TOKEN_ID, lineNum, lexeme);
+
+			int cp = this.decode(pos);
+			if (pos == start ? !Character.isLetter(cp) : !Character.isLetterOrDigit(cp)) {
+				if (pos == start) {
+					this.start = start;
+					this.pos = start + utf8Length(c);
+					throw new Exception("illegal character: " + new String(Character.toChars(cp)));
 				}
+				return pos;
+			}
+			pos += utf8Length(c);
+		}
+	}
+
+	// the number of bytes of the UTF-8 sequence starting with "lead",
+	// or 0 if "lead" can't start a sequence
+	private static int utf8Length(int lead) {
+		if (lead < 0x80)
+			return 1;
+		if (lead < 0xc2)
+			return 0;
+		if (lead < 0xe0)
+			return 2;
+		if (lead < 0xf0)
+			return 3;
+		if (lead < 0xf5)
+			return 4;
+		return 0;
+	}
+
+	// decode the UTF-8 sequence at "pos" into a code point
+	private int decode(int pos) throws Exception {
+		Source src = this.src;
+		int lead = src.at(pos);
+		int n = utf8Length(lead);
+		int cp;
+
+		if (n == 0)
+			throw this.malformed(pos);
+		cp = lead & (0x7f >> n);
+		for (int i = 1; i < n; i++) {
+			int c = src.at(pos + i);
+			if ((c & 0xc0) != 0x80)
+				throw this.malformed(pos);
+			cp = (cp << 6) | (c & 0x3f);
+		}
+		// reject overlong forms, surrogates and values past U+10FFFF
+		if ((n == 3 && cp < 0x800) || (n == 4 && (cp < 0x10000 || cp > 0x10ffff))
+				|| (cp >= 0xd800 && cp <= 0xdfff))
+			throw this.malformed(pos);
+		return cp;
+	}
+
+	// the error of a bad UTF-8 sequence at "pos", after which scanning
+	// goes on with the next byte
+	private Exception malformed(int pos) {
+		this.start = pos;
+		this.pos = pos + 1;
+		return new Exception("malformed UTF-8 input");
+	}
+
+	// /////////////////////////////////////////////////////
+	// skipping blanks and comments 8 characters at a time: each
+	// word of the source is tested for all its bytes at once, by
+	// bit twiddling on a long ("SIMD within a register").
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+
+	// The high bit of each byte of the result is set if and only if
+	// that byte of "w" is "b". Unlike the cheaper (w - ONES) & ~w
+	// test, this is exact for every byte, so set bits can be counted.
+	private static long match(long w, int b) {
+		long x = w ^ (b * ONES);
+		return ~(((x & LOW7) + LOW7) | x | LOW7);
+	}
+
+	// the bytes below the "n"th byte of a word
+	private static long below(int n) {
+		return (1L << (n << 3)) - 1;
+	}
+
+	// Return the index of the first character at or after "pos"
+	// which is not a blank, counting the newlines on the way.
+	private int skipBlanks(int pos) {
+		Source src = this.src;
+		int last = src.length() - 8;
+
+		while (pos <= last) {
+			long w = src.word(pos);
+			long newlines = match(w, '\n');
+			long blanks = newlines | match(w, ' ') | match(w, '\t') | match(w, '\r');
+			long others = ~blanks & ~LOW7;
+			if (others != 0) {
+				int n = Long.numberOfTrailingZeros(others) >>> 3;
+				this.lineNum += Long.bitCount(newlines & below(n));
+				return pos + n;
 			}
+			this.lineNum += Long.bitCount(newlines);
+			pos += 8;
 		}
 
-		// unknow symbol
-		if (token == null)
-			throw new Exception();
+		int c = src.at(pos);
+		while (' ' == c || '\t' == c || '\n' == c || '\r' == c) {
+			if ('\n' == c)
+				this.lineNum++;
+			c = src.at(++pos);
+		}
+		return pos;
+	}
 
-		return token;
+	// Return the index of the first "b" at or after "pos", or the end
+	// of the source, counting the newlines on the way (but "b").
+	private int skipTo(int pos, int b) {
+		Source src = this.src;
+		int last = src.length() - 8;
+
+		while (pos <= last) {
+			long w = src.word(pos);
+			long found = match(w, b);
+			long newlines = b == '\n' ? 0 : match(w, '\n');
+			if (found != 0) {
+				int n = Long.numberOfTrailingZeros(found) >>> 3;
+				this.lineNum += Long.bitCount(newlines & below(n));
+				return pos + n;
+			}
+			this.lineNum += Long.bitCount(newlines);
+			pos += 8;
+		}
+
+		int c = src.at(pos);
+		while (c != -1 && c != b) {
+			if ('\n' == c)
+				this.lineNum++;
+			c = src.at(++pos);
+		}
+		return pos;
+	}
+
+	// Scan the next token like "scan", but report the errors and go on
+	// scanning after them instead of stopping.
+	private Kind next() {
+		while (true) {
+			try {
+				Kind kind = this.scan();
+				if (TRACE && kind != Kind.TOKEN_EOF)
+					trace(this.src, this.start);
+				return kind;
+			} catch (Exception e) {
+				this.error(this.start, e.getMessage());
+			}
+		}
+	}
+
+	// When called, return the next token (refer to the code "Token.java")
+	// from the input stream.
+	// Return TOKEN_EOF when reaching the end of the input stream.
+	private Token nextTokenInternal() {
+		Kind kind = this.next();
+		Token token;
+
+		switch (kind) {
+		case TOKEN_ID:
+			return new Token(kind, lineNum, src, start, this.pos - start);
+		case TOKEN_NUM:
+			token = new Token(kind, lineNum, src, start, this.pos - start);
+			token.value = this.value;
+			return token;
+		default:
+			return new Token(kind, lineNum);
+		}
 	}
 
 	public Token nextToken() {
-		Token t = null;
+		Token t = this.nextTokenInternal();
+
+		if (dump)
+			t.dump(ByteWriter.out);
+		return t;
+	}
+
+	// Scan the next token and append it to "tokens", without
+	// building a "Token" object for it.
+	public void lex(TokenBuffer tokens) {
+		Kind kind = this.next();
+
+		tokens.add(kind, this.start, this.pos - this.start);
+		if (dump)
+			tokens.dump(tokens.size() - 1, ByteWriter.out);
+	}
+
+	// Scan the whole source into a token buffer, which
+	// ends with TOKEN_EOF.
+	public TokenBuffer lexAll() {
+		TokenBuffer tokens = new TokenBuffer(this.src);
+
+		do {
+			this.lex(tokens);
+		} while (tokens.kind(tokens.size() - 1) != Kind.TOKEN_EOF);
+		return tokens;
+	}
+
+	// /////////////////////////////////////////////////////
+	// parallel lexing of large sources
+
+	// chunks smaller than this are not worth a thread
+	private static final int CHUNK_MIN = 1 << 16;
+
+	// Scan the whole source "src" into a token buffer, with "jobs"
+	// threads, each of which scans one chunk of the source. The errors
+	// go to "diagnostics".
+	//
+	// Every chunk ends right after a newline, so the only token that
+	// can straddle two chunks is a "/* */" comment. Each chunk is
+	// scanned as if it started outside a comment, which is then checked,
+	// in source order: the first chunk starts outside any comment, and
+	// a chunk which scans up to its end without running into an
+	// unterminated comment proves that the next chunk starts outside
+	// a comment too. A chunk which fails to scan is merged with the
+	// next ones and scanned again, until the merged chunk scans.
+	//
+	// The tokens are traced and dumped once stitched, in order, by the
+	// calling thread.
+	public static TokenBuffer lexParallel(String fname, Source src, int jobs, Diagnostics diagnostics) {
+		int[] bounds = split(src, jobs);
+		int n = bounds.length - 1;
+
+		if (n <= 1)
+			return new Lexer(fname, src, diagnostics).lexAll();
+
+		TokenBuffer[] chunks = new TokenBuffer[n];
+		IntStream.range(0, n).parallel().forEach((i) -> {
+			chunks[i] = lexChunk(fname, src, bounds[i], bounds[i + 1]);
+		});
+
+		TokenBuffer tokens = new TokenBuffer(src);
+		int i = 0;
+		while (i < n) {
+			TokenBuffer chunk = chunks[i];
+			int j = i + 1;
 
+			// chunk "i" starts outside a comment, but does not scan
+			while (chunk == null && j < n) {
+				j++;
+				chunk = lexChunk(fname, src, bounds[i], bounds[j]);
+			}
+			if (chunk == null) {
+				// a genuine lexical error, which the sequential
+				// lexer reports
+				Lexer lexer = new Lexer(fname, src, diagnostics);
+				lexer.pos = bounds[i];
+				lexer.lineNum = src.line(bounds[i]);
+				do {
+					lexer.lex(tokens);
+				} while (tokens.kind(tokens.size() - 1) != Kind.TOKEN_EOF);
+				return tokens;
+			}
+			int from = tokens.size();
+			tokens.append(chunk);
+			for (int k = from; k < tokens.size(); k++) {
+				if (TRACE)
+					trace(src, tokens.offset(k));
+				if (dump)
+					tokens.dump(k, ByteWriter.out);
+			}
+			i = j;
+		}
+		tokens.add(Kind.TOKEN_EOF, src.length(), 0);
+		if (dump)
+			tokens.dump(tokens.size() - 1, ByteWriter.out);
+		return tokens;
+	}
+
+	// Cut "src" into at most "jobs" chunks, at newlines. Chunk "i"
+	// spans [bounds[i], bounds[i + 1]).
+	private static int[] split(Source src, int jobs) {
+		int length = src.length();
+		int n = Math.min(jobs, length / CHUNK_MIN);
+		int[] bounds = new int[Math.max(n, 1) + 1];
+		int k = 1;
+
+		for (int i = 1; i < n; i++) {
+			int p = Math.max(bounds[k - 1], (int) ((long) length * i / n));
+			while (p < length && src.at(p) != '\n')
+				p++;
+			if (p + 1 >= length)
+				break;
+			bounds[k++] = p + 1;
+		}
+		bounds[k++] = length;
+		return Arrays.copyOf(bounds, k);
+	}
+
+	// Scan [from, to) of "src", assuming that "from" is outside any
+	// comment. Return the tokens, without a TOKEN_EOF, or null if
+	// this part of the source does not scan without errors.
+	private static TokenBuffer lexChunk(String fname, Source src, int from, int to) {
+		Lexer lexer = new Lexer(fname, src.prefix(to));
+		TokenBuffer tokens = new TokenBuffer(src);
+
+		lexer.pos = from;
 		try {
-			t = this.nextTokenInternal();
+			Kind kind;
+			while ((kind = lexer.scan()) != Kind.TOKEN_EOF)
+				tokens.add(kind, lexer.start, lexer.pos - lexer.start);
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+			return null;
 		}
-		if (dump)
-			System.out.println(t.toString());
-		return t;
+		if (lexer.diagnostics.count() > 0)
+			return null;
+		return tokens;
+	}
+
+	// /////////////////////////////////////////////////////
+	// incremental lexing
+
+	// Return the token stream of the source of "old" after "edit".
+	//
+	// Scanning restarts right after the last token which ends before
+	// the edit, and stops at the first new token which starts after the
+	// edit, at the same place as an old token does: the lexer keeps no
+	// state across tokens, so from there on, the old tokens, moved by
+	// the size of the edit, are the ones a full scan would give. The
+	// errors of the tokens scanned again go to "diagnostics".
+	public static TokenBuffer relex(String fname, TokenBuffer old, Edit edit, Diagnostics diagnostics) {
+		Source src = old.source().splice(edit.offset, edit.removed, edit.inserted);
+		int delta = edit.delta();
+		int editEnd = edit.offset + edit.inserted.length;
+		TokenBuffer tokens = new TokenBuffer(src);
+		Lexer lexer = new Lexer(fname, src, diagnostics);
+
+		// the tokens ending before the edit are unchanged
+		int first = old.search(edit.offset);
+		tokens.append(old, 0, first, 0);
+		if (first > 0)
+			lexer.pos = old.offset(first - 1) + old.length(first - 1);
+
+		int j = first; // the old token to resynchronize with
+		while (true) {
+			Kind kind = lexer.next();
+
+			if (lexer.start >= editEnd) {
+				int start = lexer.start - delta;
+				while (j < old.size() && old.offset(j) < start)
+					j++;
+				if (j < old.size() && old.offset(j) == start)
+					break;
+			}
+			tokens.add(kind, lexer.start, lexer.pos - lexer.start);
+			if (kind == Kind.TOKEN_EOF) {
+				j = old.size();
+				break;
+			}
+		}
+		edit.first = first;
+		edit.oldEnd = j;
+		edit.newEnd = tokens.size();
+		tokens.append(old, j, old.size(), delta);
+		return tokens;
 	}
 }
@@ -0,0 +1,243 @@
+package lexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import util.ByteWriter;
+
+// The whole content of a source file, made addressable by index,
+// so that the lexer can scan it with a cursor (and look ahead by any
+// number of characters) instead of calling "InputStream.read()" for
+// every character.
+//
+// There are two kinds of sources: "Array" loads the file into
+// the heap, and "Mapped" maps the file into memory, so that the
+// lexer scans the bytes in the page cache directly.
+public abstract class Source {
+	int length; // number of bytes in the file
+	volatile int[] lines; // the offset at which each line starts, built
+							// on demand by any thread
+
+	public int length() {
+		return this.length;
+	}
+
+	// Return the line number (starting from 1) of the character
+	// at "offset".
+	public int line(int offset) {
+		int[] lines = this.lines;
+		if (lines == null)
+			lines = this.lines = this.scanLines();
+
+		// the last line starting at or before "offset"
+		int lo = 0, hi = lines.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (lines[mid] <= offset)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo + 1;
+	}
+
+	// Return the column number (starting from 1) of the character
+	// at "offset", counting the characters of the line, not its bytes.
+	public int column(int offset) {
+		int line = this.line(offset);
+		int column = 1;
+
+		for (int i = this.lines[line - 1]; i < offset; i++) {
+			// skip the continuation bytes of UTF-8 sequences
+			if ((this.at(i) & 0xc0) != 0x80)
+				column++;
+		}
+		return column;
+	}
+
+	private int[] scanLines() {
+		int[] lines = new int[64];
+		int n = 1;
+
+		for (int i = 0; i < this.length; i++) {
+			if (this.at(i) != '\n')
+				continue;
+			if (n == lines.length)
+				lines = Arrays.copyOf(lines, 2 * n);
+			lines[n++] = i + 1;
+		}
+		return Arrays.copyOf(lines, n);
+	}
+
+	// Return the character at index "i", or -1 when "i" is
+	// past the end of the file.
+	public abstract int at(int i);
+
+	// Return the 8 bytes at [i, i + 8) as a little-endian long,
+	// so that the lexer can look at them all at once.
+	public abstract long word(int i);
+
+	// Return the text of the "length" characters starting
+	// at "offset".
+	public abstract String string(int offset, int length);
+
+	// Return the first "length" bytes of this source, as a source
+	// sharing its content.
+	public abstract Source prefix(int length);
+
+	// copy the "length" bytes at "offset" into "dst", at "to"
+	abstract void copy(int offset, byte[] dst, int to, int length);
+
+	// write the "length" bytes at "offset" to "out"
+	public abstract void write(ByteWriter out, int offset, int length);
+
+	// Return the SHA-256 digest of the content, which identifies the
+	// source whatever the file it has been read from.
+	public byte[] hash() {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new Error(e);
+		}
+
+		byte[] block = new byte[1 << 16];
+		for (int offset = 0; offset < this.length; offset += block.length) {
+			int n = Math.min(block.length, this.length - offset);
+			this.copy(offset, block, 0, n);
+			md.update(block, 0, n);
+		}
+		return md.digest();
+	}
+
+	// Return a copy of this source in which the "removed" bytes at
+	// "offset" are replaced by "inserted".
+	public Source splice(int offset, int removed, byte[] inserted) {
+		byte[] buf = new byte[this.length - removed + inserted.length];
+
+		this.copy(0, buf, 0, offset);
+		System.arraycopy(inserted, 0, buf, offset, inserted.length);
+		this.copy(offset + removed, buf, offset + inserted.length, this.length - offset - removed);
+		return new Array(buf, buf.length);
+	}
+
+	// load the whole stream into the heap
+	public static Source read(InputStream fstream) throws IOException {
+		byte[] buf = fstream.readAllBytes();
+		return new Array(buf, buf.length);
+	}
+
+	// map the file "fname" into memory
+	public static Source map(String fname) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(fname + ": file too large to be mapped");
+			return new Mapped(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	public static class Array extends Source {
+		private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(long[].class,
+				ByteOrder.LITTLE_ENDIAN);
+
+		byte[] buf;
+
+		public Array(byte[] buf, int length) {
+			this.buf = buf;
+			this.length = length;
+		}
+
+		@Override
+		public int at(int i) {
+			if (i >= this.length)
+				return -1;
+			return this.buf[i] & 0xff;
+		}
+
+		@Override
+		public long word(int i) {
+			return (long) WORDS.get(this.buf, i);
+		}
+
+		@Override
+		public String string(int offset, int length) {
+			return new String(this.buf, offset, length, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Source prefix(int length) {
+			return new Array(this.buf, length);
+		}
+
+		@Override
+		void copy(int offset, byte[] dst, int to, int length) {
+			System.arraycopy(this.buf, offset, dst, to, length);
+		}
+
+		@Override
+		public void write(ByteWriter out, int offset, int length) {
+			out.write(this.buf, offset, length);
+		}
+	}
+
+	public static class Mapped extends Source {
+		MappedByteBuffer buf;
+
+		public Mapped(MappedByteBuffer buf) {
+			this(buf, buf.limit());
+		}
+
+		public Mapped(MappedByteBuffer buf, int length) {
+			this.buf = buf;
+			this.buf.order(ByteOrder.LITTLE_ENDIAN);
+			this.length = length;
+		}
+
+		@Override
+		public int at(int i) {
+			if (i >= this.length)
+				return -1;
+			return this.buf.get(i) & 0xff;
+		}
+
+		@Override
+		public long word(int i) {
+			return this.buf.getLong(i);
+		}
+
+		@Override
+		public String string(int offset, int length) {
+			byte[] bytes = new byte[length];
+			this.copy(offset, bytes, 0, length);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Source prefix(int length) {
+			return new Mapped(this.buf, length);
+		}
+
+		@Override
+		void copy(int offset, byte[] dst, int to, int length) {
+			this.buf.get(offset, dst, to, length);
+		}
+
+		@Override
+		public void write(ByteWriter out, int offset, int length) {
+			out.write(this.buf, offset, length);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package lexer;
+
+// The canonical object for an identifier. There is a single "Symbol"
+// for each spelling, whatever the file or the thread it comes from
+// (see "Symbols"), so symbols can be compared with "==", and their
+// dense "id" can index arrays and int-keyed tables.
+public final class Symbol {
+	public final String name;
+	public final int id;
+	final byte[] bytes; // the UTF-8 spelling of "name"
+	final int hash;
+
+	Symbol(String name, int id, byte[] bytes, int hash) {
+		this.name = name;
+		this.id = id;
+		this.bytes = bytes;
+		this.hash = hash;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
@@ -0,0 +1,123 @@
+package lexer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The pool of all the identifiers of a compilation, shared by all its
+// files and threads, which maps the spelling of an identifier to its
+// canonical "Symbol".
+//
+// The pool is split into stripes, each one an open-addressing hash
+// table with its own lock, so that threads interning different
+// identifiers seldom wait for each other. Symbols are hashed and
+// compared right on the bytes of the source: a String is only built
+// for the first occurrence of each identifier.
+public class Symbols {
+	private static final int STRIPES = 64; // a power of 2
+	private static final Stripe[] stripes = new Stripe[STRIPES];
+
+	// Symbols by id, in chunks which never move once allocated,
+	// so that "get" takes no lock.
+	private static final int CHUNK = 1024;
+	private static volatile Symbol[][] chunks = new Symbol[64][];
+	private static int count = 0; // guarded by "Symbols.class"
+
+	private static class Stripe {
+		Symbol[] table = new Symbol[16]; // a power of 2, at most half full
+		int size = 0;
+	}
+
+	static {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	// Return the symbol spelled by the "length" bytes at "offset"
+	// in "src".
+	public static Symbol intern(Source src, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++)
+			hash = (hash ^ src.at(i)) * 0x01000193;
+
+		Stripe stripe = stripes[hash & (STRIPES - 1)];
+		synchronized (stripe) {
+			Symbol[] table = stripe.table;
+			int mask = table.length - 1;
+			for (int i = (hash >>> 6) & mask;; i = (i + 1) & mask) {
+				Symbol s = table[i];
+				if (s == null)
+					break;
+				if (s.hash == hash && same(s.bytes, src, offset, length))
+					return s;
+			}
+
+			byte[] bytes = new byte[length];
+			src.copy(offset, bytes, 0, length);
+			Symbol s = create(new String(bytes, StandardCharsets.UTF_8), bytes, hash);
+			insert(stripe, s);
+			return s;
+		}
+	}
+
+	public static Symbol intern(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return intern(new Source.Array(bytes, bytes.length), 0, bytes.length);
+	}
+
+	// the symbol whose id is "id"
+	public static Symbol get(int id) {
+		return chunks[id / CHUNK][id % CHUNK];
+	}
+
+	// the number of symbols so far, which bounds their ids
+	public static synchronized int count() {
+		return count;
+	}
+
+	private static boolean same(byte[] bytes, Source src, int offset, int length) {
+		if (bytes.length != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if ((bytes[i] & 0xff) != src.at(offset + i))
+				return false;
+		}
+		return true;
+	}
+
+	private static synchronized Symbol create(String name, byte[] bytes, int hash) {
+		int id = count++;
+		Symbol[][] chunks = Symbols.chunks;
+		Symbol s = new Symbol(name, id, bytes, hash);
+
+		if (id / CHUNK == chunks.length)
+			chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+		if (chunks[id / CHUNK] == null)
+			chunks[id / CHUNK] = new Symbol[CHUNK];
+		chunks[id / CHUNK][id % CHUNK] = s;
+		// publish the new symbol to "get"
+		Symbols.chunks = chunks;
+		return s;
+	}
+
+	// insert "s" into "stripe", whose lock is held
+	private static void insert(Stripe stripe, Symbol s) {
+		if (2 * (stripe.size + 1) > stripe.table.length) {
+			Symbol[] old = stripe.table;
+			stripe.table = new Symbol[2 * old.length];
+			for (Symbol t : old) {
+				if (t != null)
+					put(stripe.table, t);
+			}
+		}
+		put(stripe.table, s);
+		stripe.size++;
+	}
+
+	private static void put(Symbol[] table, Symbol s) {
+		int mask = table.length - 1;
+		int i = (s.hash >>> 6) & mask;
+		while (table[i] != null)
+			i = (i + 1) & mask;
+		table[i] = s;
+	}
+}
@@ -1,5 +1,7 @@
 package lexer;
 
+import util.ByteWriter;
+
 public class Token {
 	// Lab 1, exercise 1: read the MiniJava specification
 	// carefully, and answer these two questions:
@@ -9,56 +11,72 @@ public class Token {
 	// It's highly recommended that these token names are
 	// alphabetically ordered, if you add new ones.
 	public enum Kind {
-		TOKEN_ADD, // "+"
-		TOKEN_AND, // "&&"
-		TOKEN_ASSIGN, // "="
-		TOKEN_BOOLEAN, // "boolean"
-		TOKEN_CLASS, // "class"
-		TOKEN_COMMER, // ","
-		TOKEN_DOT, // "."
-		TOKEN_ELSE, // "else"
-		TOKEN_EOF, // EOF
-		TOKEN_EXTENDS, // "extends"
-		TOKEN_FALSE, // "false"
-		TOKEN_ID, // Identifier
-		TOKEN_IF, // "if"
-		TOKEN_INT, // "int"
-		TOKEN_LBRACE, // "{"
-		TOKEN_LBRACK, // "["
-		TOKEN_LENGTH, // "length"
-		TOKEN_LPAREN, // "("
-		TOKEN_LT, // "<"
-		TOKEN_MAIN, // "main"
-		TOKEN_NEW, // "new"
-		TOKEN_NOT, // "!"
-		TOKEN_NUM, // IntegerLiteral
+		TOKEN_ADD("+"),
+		TOKEN_AND("&&"),
+		TOKEN_ASSIGN("="),
+		TOKEN_BOOLEAN("boolean"),
+		TOKEN_CLASS("class"),
+		TOKEN_COMMER(","),
+		TOKEN_DOT("."),
+		TOKEN_ELSE("else"),
+		TOKEN_EOF(null), // EOF
+		TOKEN_EXTENDS("extends"),
+		TOKEN_FALSE("false"),
+		TOKEN_ID(null), // Identifier
+		TOKEN_IF("if"),
+		TOKEN_INT("int"),
+		TOKEN_LBRACE("{"),
+		TOKEN_LBRACK("["),
+		TOKEN_LENGTH("length"),
+		TOKEN_LPAREN("("),
+		TOKEN_LT("<"),
+		TOKEN_MAIN("main"),
+		TOKEN_NEW("new"),
+		TOKEN_NOT("!"),
+		TOKEN_NUM(null), // IntegerLiteral
 		// "out" is not a Java key word, but we treat it as
 		// a MiniJava keyword, which will make the
 		// compilation a little easier. Similar cases apply
 		// for "println", "System" and "String".
-		TOKEN_OUT, // "out"
-		TOKEN_PRINTLN, // "println"
-		TOKEN_PUBLIC, // "public"
-		TOKEN_RBRACE, // "}"
-		TOKEN_RBRACK, // "]"
-		TOKEN_RETURN, // "return"
-		TOKEN_RPAREN, // ")"
-		TOKEN_SEMI, // ";"
-		TOKEN_STATIC, // "static"
-		TOKEN_STRING, // "String"
-		TOKEN_SUB, // "-"
-		TOKEN_SYSTEM, // "System"
-		TOKEN_THIS, // "this"
-		TOKEN_TIMES, // "*"
-		TOKEN_TRUE, // "true"
-		TOKEN_VOID, // "void"
-		TOKEN_WHILE, // "while"
+		TOKEN_OUT("out"),
+		TOKEN_PRINTLN("println"),
+		TOKEN_PUBLIC("public"),
+		TOKEN_RBRACE("}"),
+		TOKEN_RBRACK("]"),
+		TOKEN_RETURN("return"),
+		TOKEN_RPAREN(")"),
+		TOKEN_SEMI(";"),
+		TOKEN_STATIC("static"),
+		TOKEN_STRING("String"),
+		TOKEN_SUB("-"),
+		TOKEN_SYSTEM("System"),
+		TOKEN_THIS("this"),
+		TOKEN_TIMES("*"),
+		TOKEN_TRUE("true"),
+		TOKEN_VOID("void"),
+		TOKEN_WHILE("while");
+
+		// how the token is spelled in the source, or null for
+		// tokens without a fixed spelling
+		public final String spelling;
+
+		Kind(String spelling) {
+			this.spelling = spelling;
+		}
 	}
 
 	public Kind kind; // kind of the token
-	public String lexeme; // extra lexeme for this token, if any
 	public Integer lineNum; // on which line of the source file this token
 							// appears
+	public int value; // the value of a TOKEN_NUM
+	String lexeme; // extra lexeme for this token, if any
+
+	// Tokens built by the lexer don't carry their lexeme, but
+	// the slice of the source file it comes from. The "String" is
+	// only built the first time someone asks for it.
+	Source src;
+	int offset;
+	int length;
 
 	// Some tokens don't come with lexeme but
 	// others do.
@@ -72,15 +90,55 @@ public class Token {
 		this.lexeme = lexeme;
 	}
 
+	public Token(Kind kind, Integer lineNum, Source src, int offset, int length) {
+		this(kind, lineNum);
+		this.src = src;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	// return the lexeme of this token, or null if it has none
+	public String lexeme() {
+		if (this.lexeme == null && this.src != null)
+			this.lexeme = this.src.string(this.offset, this.length);
+		return this.lexeme;
+	}
+
+	// return the symbol of a TOKEN_ID, or null for other tokens
+	public Symbol symbol() {
+		if (this.kind != Kind.TOKEN_ID)
+			return null;
+		if (this.src != null)
+			return Symbols.intern(this.src, this.offset, this.length);
+		return Symbols.intern(this.lexeme);
+	}
+
 	@Override
 	public String toString() {
 		String s;
+		String lexeme = this.lexeme();
 
 		// to check that the "lineNum" field has been properly set.
 		if (this.lineNum == null)
 			new util.Todo();
 
-		s = ": " + ((this.lexeme == null) ? "<NONE>" : this.lexeme) + " : at line " + this.lineNum.toString();
+		s = ": " + ((lexeme == null) ? "<NONE>" : lexeme) + " : at line " + this.lineNum.toString();
 		return this.kind.toString() + s;
 	}
+
+	// Write this token into "out", in the same format as "toString",
+	// but without building any string.
+	public void dump(ByteWriter out) {
+		out.write(this.kind.name());
+		out.write(": ");
+		if (this.src != null)
+			this.src.write(out, this.offset, this.length);
+		else if (this.lexeme != null)
+			out.writeUtf8(this.lexeme);
+		else
+			out.write("<NONE>");
+		out.write(" : at line ");
+		out.writeInt(this.lineNum);
+		out.newline();
+	}
 }
@@ -0,0 +1,249 @@
+package lexer;
+
+import java.util.Arrays;
+
+import lexer.Token.Kind;
+import util.ByteWriter;
+
+// A whole token stream, stored as a "struct of arrays": token "i"
+// is described by kinds[i], offsets[i] and lengths[i], so a stream of
+// a million tokens is three arrays instead of a million objects.
+// Line and column numbers are recovered from the source on demand.
+//
+// A consumer which is done with the first tokens of a long stream can
+// "discard" them: the arrays then start with token "first", and the
+// other tokens keep their indices.
+//
+// The ids of the symbols of the identifiers can be looked up once for
+// all, and kept with the tokens, so that the threads of a phase which
+// looks up names only read them, instead of interning each name in the
+// pool of symbols, under a lock, again and again.
+public class TokenBuffer {
+	private static final Kind[] KINDS = Kind.values();
+
+	Source src; // the source the tokens are scanned from
+	byte[] kinds; // the ordinal of the kind of each token
+	int[] offsets; // where each token starts in "src"
+	int[] lengths; // number of characters of each token
+	int size; // number of tokens
+	int first; // the first token kept in the arrays
+	int[] ids; // the id + 1 of the symbol of each TOKEN_ID, 0 for the
+				// others and the ones added since, or null
+
+	public TokenBuffer(Source src) {
+		this.src = src;
+		this.kinds = new byte[1024];
+		this.offsets = new int[1024];
+		this.lengths = new int[1024];
+		this.size = 0;
+		this.first = 0;
+	}
+
+	// the "size" tokens already scanned from "src" which are described
+	// by the arrays, as loaded from a cache
+	public TokenBuffer(Source src, byte[] kinds, int[] offsets, int[] lengths, int size) {
+		this.src = src;
+		this.kinds = kinds;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.size = size;
+		this.first = 0;
+	}
+
+	public Source source() {
+		return this.src;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// make room for "n" more tokens
+	private void reserve(int n) {
+		int kept = this.size - this.first;
+		if (kept + n <= this.kinds.length)
+			return;
+
+		int capacity = Math.max(2 * this.kinds.length, kept + n);
+		this.kinds = Arrays.copyOf(this.kinds, capacity);
+		this.offsets = Arrays.copyOf(this.offsets, capacity);
+		this.lengths = Arrays.copyOf(this.lengths, capacity);
+		if (this.ids != null)
+			this.ids = Arrays.copyOf(this.ids, capacity);
+	}
+
+	public void add(Kind kind, int offset, int length) {
+		this.reserve(1);
+		int i = this.size - this.first;
+		this.kinds[i] = (byte) kind.ordinal();
+		this.offsets[i] = offset;
+		this.lengths[i] = length;
+		if (this.ids != null)
+			this.ids[i] = 0;
+		this.size++;
+	}
+
+	// append all the tokens of "other", which must be scanned
+	// from the same source
+	public void append(TokenBuffer other) {
+		this.append(other, 0, other.size, 0);
+	}
+
+	// Append the tokens [from, to) of "other", moving them by
+	// "shift" characters in the source.
+	public void append(TokenBuffer other, int from, int to, int shift) {
+		int n = to - from;
+
+		this.reserve(n);
+		int at = this.size - this.first;
+		from -= other.first;
+		System.arraycopy(other.kinds, from, this.kinds, at, n);
+		System.arraycopy(other.offsets, from, this.offsets, at, n);
+		System.arraycopy(other.lengths, from, this.lengths, at, n);
+		if (this.ids != null) {
+			if (other.ids != null)
+				System.arraycopy(other.ids, from, this.ids, at, n);
+			else
+				Arrays.fill(this.ids, at, at + n, 0);
+		}
+		if (shift != 0) {
+			for (int i = at; i < at + n; i++)
+				this.offsets[i] += shift;
+		}
+		this.size += n;
+	}
+
+	// Drop the tokens before "to", which can't be used anymore.
+	public void discard(int to) {
+		int from = to - this.first;
+		int n = this.size - to;
+		System.arraycopy(this.kinds, from, this.kinds, 0, n);
+		System.arraycopy(this.offsets, from, this.offsets, 0, n);
+		System.arraycopy(this.lengths, from, this.lengths, 0, n);
+		if (this.ids != null)
+			System.arraycopy(this.ids, from, this.ids, 0, n);
+		this.first = to;
+	}
+
+	// the first token which hasn't been discarded
+	public int first() {
+		return this.first;
+	}
+
+	// Return the index of the first token which ends at or
+	// after "offset", or "size" if there is none.
+	public int search(int offset) {
+		int lo = this.first, hi = this.size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.offsets[mid - this.first] + this.lengths[mid - this.first] < offset)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	public Kind kind(int i) {
+		return KINDS[this.kinds[i - this.first]];
+	}
+
+	public int offset(int i) {
+		return this.offsets[i - this.first];
+	}
+
+	public int length(int i) {
+		return this.lengths[i - this.first];
+	}
+
+	public int lineNum(int i) {
+		return this.src.line(this.offsets[i - this.first]);
+	}
+
+	public int column(int i) {
+		return this.src.column(this.offsets[i - this.first]);
+	}
+
+	// the lexeme of a TOKEN_ID or TOKEN_NUM, null for
+	// other tokens
+	public String lexeme(int i) {
+		Kind kind = this.kind(i);
+		if (kind != Kind.TOKEN_ID && kind != Kind.TOKEN_NUM)
+			return null;
+		return this.src.string(this.offset(i), this.length(i));
+	}
+
+	// the symbol of a TOKEN_ID, null for other tokens
+	public Symbol symbol(int i) {
+		if (this.kind(i) != Kind.TOKEN_ID)
+			return null;
+		return Symbols.intern(this.src, this.offset(i), this.length(i));
+	}
+
+	// the id of the symbol of a TOKEN_ID, as kept by "intern", or
+	// else looked up
+	public int symbolId(int i) {
+		if (this.ids != null) {
+			int id = this.ids[i - this.first] - 1;
+			if (id >= 0)
+				return id;
+		}
+		return this.symbol(i).id;
+	}
+
+	// Look up the symbols of all the identifiers, and keep their ids,
+	// so that "symbolId" only reads them, without taking any lock.
+	public void intern() {
+		int n = this.size - this.first;
+		int[] ids = new int[this.kinds.length];
+		int id = Kind.TOKEN_ID.ordinal();
+		for (int i = 0; i < n; i++) {
+			if (this.kinds[i] == id)
+				ids[i] = Symbols.intern(this.src, this.offsets[i], this.lengths[i]).id + 1;
+		}
+		this.ids = ids;
+	}
+
+	// the value of a TOKEN_NUM, which the lexer has checked
+	// to fit in an int
+	public int value(int i) {
+		int value = 0;
+		int end = this.offset(i) + this.length(i);
+		for (int j = this.offset(i); j < end; j++)
+			value = value * 10 + (this.src.at(j) - '0');
+		return value;
+	}
+
+	// Write token "i" into "out", in the format of "Token.toString".
+	public void dump(int i, ByteWriter out) {
+		Kind kind = this.kind(i);
+
+		out.write(kind.name());
+		out.write(": ");
+		if (kind == Kind.TOKEN_ID || kind == Kind.TOKEN_NUM)
+			this.src.write(out, this.offset(i), this.length(i));
+		else
+			out.write("<NONE>");
+		out.write(" : at line ");
+		out.writeInt(this.lineNum(i));
+		out.newline();
+	}
+
+	// Build a "Token" for token "i", which is handy for
+	// dumps and error messages.
+	public Token token(int i) {
+		Kind kind = this.kind(i);
+		Token token;
+
+		switch (kind) {
+		case TOKEN_ID:
+			return new Token(kind, this.lineNum(i), this.src, this.offset(i), this.length(i));
+		case TOKEN_NUM:
+			token = new Token(kind, this.lineNum(i), this.src, this.offset(i), this.length(i));
+			token.value = this.value(i);
+			return token;
+		default:
+			return new Token(kind, this.lineNum(i));
+		}
+	}
+}
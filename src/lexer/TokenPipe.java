@@ -0,0 +1,50 @@
+package lexer;
+
+import lexer.Token.Kind;
+import util.Ring;
+
+// Scans a source on a thread of its own, ahead of its consumer, and
+// hands the tokens over in batches through a lock-free ring buffer, so
+// that the lexer and the parser run on two cores.
+public class TokenPipe {
+	private static final int BATCH = 1024; // tokens per batch
+	private static final int BATCHES = 64; // batches scanned ahead
+
+	private final Ring<TokenBuffer> ring;
+	private final Source src;
+	private volatile Throwable failure; // what stopped the lexer, if any
+
+	public TokenPipe(Lexer lexer) {
+		this.ring = new Ring<TokenBuffer>(BATCHES);
+		this.src = lexer.source();
+		Thread thread = new Thread(() -> this.run(lexer), "lexer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run(Lexer lexer) {
+		try {
+			TokenBuffer batch;
+			do {
+				batch = new TokenBuffer(this.src);
+				do {
+					lexer.lex(batch);
+				} while (batch.size() < BATCH && batch.kind(batch.size() - 1) != Kind.TOKEN_EOF);
+				this.ring.put(batch);
+			} while (batch.kind(batch.size() - 1) != Kind.TOKEN_EOF);
+		} catch (Throwable e) {
+			this.failure = e;
+			// an empty batch tells the consumer
+			this.ring.put(new TokenBuffer(this.src));
+		}
+	}
+
+	// Return the next batch of tokens, which isn't empty. The last batch
+	// ends with TOKEN_EOF, and must not be followed by another call.
+	public TokenBuffer take() {
+		TokenBuffer batch = this.ring.take();
+		if (batch.size() == 0)
+			throw new Error("the lexer failed", this.failure);
+		return batch;
+	}
+}
@@ -0,0 +1,25 @@
+package parser;
+
+import ast.Tag;
+
+// What a "Parser" tells about the program while parsing it, node by
+// node, in the order of the source. "TreeBuilder" is the listener
+// which builds the tree of the program; other listeners see the same
+// nodes without paying for a tree.
+//
+// Every node is exited once all its children have been exited, with
+// the token and the children of its "Tag". Declarations and statements
+// are also entered, before their children, but expressions and types
+// are not: the kind of an expression is only known after its first
+// operand.
+//
+// A node which doesn't parse is exited as an ERROR node, whatever it
+// has been entered as, with the nodes exited in it so far.
+public interface Listener {
+	// "token" is the first token of the node
+	void enter(Tag tag, int token);
+
+	// "children" is the number of the children of the node, which are
+	// the last nodes exited at its level
+	void exit(Tag tag, int token, int children);
+}
@@ -0,0 +1,41 @@
+package parser;
+
+import ast.Tag;
+import util.ByteWriter;
+
+// The listener which counts the nodes of each tag, without building a
+// tree: the first of the tools which only need the events of a parse.
+public class Metrics implements Listener {
+	private long[] counts = new long[Tag.values().length];
+
+	@Override
+	public void enter(Tag tag, int token) {
+	}
+
+	@Override
+	public void exit(Tag tag, int token, int children) {
+		this.counts[tag.ordinal()]++;
+	}
+
+	public long count(Tag tag) {
+		return this.counts[tag.ordinal()];
+	}
+
+	// the tags seen, with their counts, one per line
+	public void dump(ByteWriter out) {
+		long total = 0;
+		for (Tag tag : Tag.values()) {
+			long count = this.counts[tag.ordinal()];
+			if (count == 0)
+				continue;
+			out.write(tag.toString());
+			out.write(' ');
+			out.write(Long.toString(count));
+			out.newline();
+			total += count;
+		}
+		out.write("nodes ");
+		out.write(Long.toString(total));
+		out.newline();
+	}
+}
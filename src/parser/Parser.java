@@ -1,193 +1,503 @@
 package parser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ast.Storage;
+import ast.Tag;
+import ast.Tree;
+import lexer.Edit;
 import lexer.Lexer;
-import lexer.Token;
+import lexer.Source;
 import lexer.Token.Kind;
+import lexer.TokenBuffer;
+import lexer.TokenPipe;
+import util.Bug;
+import util.Diagnostics;
+import control.Control;
 
 public class Parser {
-	Lexer lexer;
-	Token current;
+	Lexer lexer; // scans more tokens on demand, or null
+	TokenPipe pipe; // or hands over the tokens scanned by another thread
+	TokenBuffer tokens; // the tokens scanned so far
+	int pos; // index of the current token in "tokens"
+	Kind current; // kind of the current token
+	Listener listener; // told about the nodes parsed
+	TreeBuilder builder; // the listener, if it builds a tree, or null
+	int capacity; // about how many nodes the tree will have
+	boolean lazy; // skip the bodies of the methods
+	int jobs; // number of threads to parse the classes
+	Diagnostics diagnostics; // where the errors go
+	int errorToken = -1; // the token of the last error reported
 
 	public Parser(String fname, java.io.InputStream fstream) {
-		lexer = new Lexer(fname, fstream);
-		current = lexer.nextToken();
+		this(new Lexer(fname, fstream));
+	}
+
+	public Parser(String fname, Source src) {
+		this(new Lexer(fname, src));
+	}
+
+	public Parser(String fname, Source src, Diagnostics diagnostics) {
+		this(new Lexer(fname, src, diagnostics));
+	}
+
+	// parse a token stream which has been fully scanned
+	public Parser(TokenBuffer tokens, Diagnostics diagnostics) {
+		this.lexer = null;
+		this.tokens = tokens;
+		this.pos = 0;
+		this.current = tokens.kind(0);
+		this.capacity = tokens.size();
+		this.lazy = Control.ConAst.lazy;
+		this.jobs = Control.ConAst.jobs;
+		this.diagnostics = diagnostics;
+	}
+
+	private Parser(Lexer lexer) {
+		if (Control.ConLexer.pipeline) {
+			this.lexer = null;
+			this.pipe = new TokenPipe(lexer);
+		} else
+			this.lexer = lexer;
+		this.tokens = new TokenBuffer(lexer.source());
+		this.more();
+		this.pos = 0;
+		this.current = this.tokens.kind(0);
+		this.capacity = lexer.source().length() / 8;
+		this.lazy = Control.ConAst.lazy;
+		// the classes are found in the whole token stream
+		this.jobs = 1;
+		this.diagnostics = lexer.diagnostics();
+	}
+
+	// parse more of "tree", from token "pos"
+	private Parser(Tree tree, int pos, boolean lazy, Diagnostics diagnostics) {
+		this.lexer = null;
+		this.tokens = tree.tokens();
+		this.pos = pos;
+		this.current = this.tokens.kind(pos);
+		this.builder = new TreeBuilder(tree, Control.ConAst.share);
+		this.listener = this.builder;
+		this.lazy = lazy;
+		this.jobs = 1;
+		this.diagnostics = diagnostics;
+	}
+
+	// storage for about "capacity" nodes
+	private static Storage newStorage(int capacity) {
+		if (Control.ConAst.offHeap)
+			return new Storage.OffHeap(capacity);
+		return new Storage.Heap(capacity);
+	}
+
+	public TokenBuffer tokens() {
+		return this.tokens;
+	}
+
+	// the syntax errors, with the lexical ones
+	public Diagnostics diagnostics() {
+		return this.diagnostics;
 	}
 
 	// /////////////////////////////////////////////
 	// utility methods to connect the lexer
 	// and the parser.
 
+	// Scan more tokens into "tokens", or return false if they have
+	// all been scanned already.
+	private boolean more() {
+		if (this.pipe != null) {
+			this.tokens.append(this.pipe.take());
+			if (this.tokens.kind(this.tokens.size() - 1) == Kind.TOKEN_EOF)
+				this.pipe = null;
+			return true;
+		}
+		if (this.lexer == null)
+			return false;
+		this.lexer.lex(this.tokens);
+		return true;
+	}
+
 	private void advance() {
-		current = lexer.nextToken();
+		// stay on the trailing TOKEN_EOF
+		if (this.pos + 1 == this.tokens.size() && !this.more())
+			return;
+		this.current = this.tokens.kind(++this.pos);
 	}
 
-	private void eatToken(Kind kind) {
-		if (kind == current.kind)
-			advance();
-		else {
-			System.out.println("Expects: " + kind.toString());
-			System.out.println("But got: " + current.kind.toString());
-			System.exit(1);
-		}
+	// the kind of the token after the current one
+	private Kind peek() {
+		if (this.pos + 1 == this.tokens.size() && !this.more())
+			return this.current;
+		return this.tokens.kind(this.pos + 1);
 	}
 
-	private void error() {
-		System.out.println("Syntax error: compilation aborting...\n");
-		System.exit(1);
-		return;
+	// eat a token of kind "kind", and return its index
+	private int eatToken(Kind kind) {
+		int token = this.pos;
+		if (kind != current)
+			throw error(describe(kind));
+		advance();
+		return token;
 	}
 
-	// ////////////////////////////////////////////////////////////
-	// below are method for parsing.
+	// Thrown on a syntax error, once it has been reported, to give up
+	// parsing up to the next statement, method or class.
+	@SuppressWarnings("serial")
+	private static class SyntaxError extends RuntimeException {
+		SyntaxError() {
+			super(null, null, false, false);
+		}
+	}
 
-	// A bunch of parsing methods to parse expressions. The messy
-	// parts are to deal with precedence and associativity.
+	private static final SyntaxError SYNTAX_ERROR = new SyntaxError();
 
-	// ExpList -> Exp ExpRest*
-	// ->
-	// ExpRest -> , Exp
-	private void parseExpList() {
-		if (current.kind == Kind.TOKEN_RPAREN)
-			return;
-		parseExp();
-		while (current.kind == Kind.TOKEN_COMMER) {
-			advance();
-			parseExp();
+	// Report that "expected" was expected at the current token, unless
+	// an error has been reported there already, and return the error
+	// to throw.
+	private SyntaxError error(String expected) {
+		if (this.pos != this.errorToken) {
+			this.errorToken = this.pos;
+			String found = this.current.spelling == null && this.current != Kind.TOKEN_EOF
+					? "\"" + this.tokens.lexeme(this.pos) + "\"" : describe(this.current);
+			this.diagnostics.error(this.tokens.lineNum(this.pos), this.tokens.column(this.pos),
+					"expected " + expected + ", but found " + found);
 		}
-		return;
+		return SYNTAX_ERROR;
 	}
 
-	// AtomExp -> (exp)
-	// -> INTEGER_LITERAL
-	// -> true
-	// -> false
-	// -> this
-	// -> id
-	// -> new int [exp]
-	// -> new id ()
-	private void parseAtomExp() {
-		switch (current.kind) {
-		case TOKEN_LPAREN:
-			advance();
-			parseExp();
-			eatToken(Kind.TOKEN_RPAREN);
-			return;
-		case TOKEN_NUM:
-			advance();
-			return;
-		case TOKEN_TRUE:
-			advance();
-			return;
-		case TOKEN_THIS:
-			advance();
-			return;
+	private static String describe(Kind kind) {
+		switch (kind) {
+		case TOKEN_EOF:
+			return "the end of the file";
 		case TOKEN_ID:
-			advance();
-			return;
-		case TOKEN_NEW: {
-			advance();
-			switch (current.kind) {
-			case TOKEN_INT:
-				advance();
-				eatToken(Kind.TOKEN_LBRACK);
-				parseExp();
-				eatToken(Kind.TOKEN_RBRACK);
-				return;
-			case TOKEN_ID:
-				advance();
-				eatToken(Kind.TOKEN_LPAREN);
-				eatToken(Kind.TOKEN_RPAREN);
-				return;
-			default:
-				error();
-				return;
-			}
-		}
+			return "an identifier";
+		case TOKEN_NUM:
+			return "an integer";
 		default:
-			error();
-			return;
+			return "\"" + kind.spelling + "\"";
+		}
+	}
+
+	// Tokens are released by this many at a time when no tree is
+	// built.
+	private static final int RELEASE = 1 << 14;
+
+	// Without a tree, drop the tokens before the current one, which
+	// nothing refers to anymore. Only the tokens still streamed in are
+	// dropped: "discard" moves the tokens kept, and a buffer scanned
+	// beforehand would be moved whole each time.
+	private void release() {
+		if (this.builder == null && (this.lexer != null || this.pipe != null)
+				&& this.pos - this.tokens.first() >= RELEASE)
+			this.tokens.discard(this.pos);
+	}
+
+	// ////////////////////////////////////////////////////////////
+	// below are method for parsing, which tell "listener" about
+	// each node they parse.
+
+	// The nodes entered and not exited yet: for each one, the value of
+	// "open" when it was entered, and its token. They are exited as
+	// ERROR nodes when the parse gives up on them.
+	int[] enters = new int[2 * 16];
+	int nenters = 0;
+	int open = 0; // the nodes exited and not given to a parent yet
+
+	// enter a node which will be exited by "exit"
+	private void enter(Tag tag, int token) {
+		if (2 * this.nenters == this.enters.length)
+			this.enters = Arrays.copyOf(this.enters, 2 * this.enters.length);
+		this.enters[2 * this.nenters] = this.open;
+		this.enters[2 * this.nenters + 1] = token;
+		this.nenters++;
+		this.listener.enter(tag, token);
+	}
+
+	private void exit(Tag tag, int token, int children) {
+		this.nenters--;
+		this.node(tag, token, children);
+	}
+
+	// exit a node which hasn't been entered
+	private void node(Tag tag, int token, int children) {
+		this.open += 1 - children;
+		this.listener.exit(tag, token, children);
+	}
+
+	private void leaf(Tag tag, int token) {
+		this.node(tag, token, 0);
+	}
+
+	// After a syntax error, give up the node which starts at token
+	// "token", when "nenters" nodes were entered and "open" nodes
+	// were open. The nodes entered since are exited as ERROR nodes,
+	// innermost first, with the children they got so far, and if the
+	// node itself wasn't entered, it is an ERROR node with the nodes
+	// exited since as its children.
+	private void recover(int nenters, int open, int token) {
+		boolean entered = this.nenters > nenters;
+		while (this.nenters > nenters) {
+			int e = 2 * (this.nenters - 1);
+			exit(Tag.ERROR, this.enters[e + 1], this.open - this.enters[e]);
 		}
+		if (!entered)
+			node(Tag.ERROR, token, this.open - open);
+		// the expression given up
+		this.nframes = 0;
 	}
 
-	// NotExp -> AtomExp
-	// -> AtomExp .id (expList)
-	// -> AtomExp [exp]
-	// -> AtomExp .length
-	private void parseNotExp() {
-		parseAtomExp();
-		while (current.kind == Kind.TOKEN_DOT || current.kind == Kind.TOKEN_LBRACK) {
-			if (current.kind == Kind.TOKEN_DOT) {
+	// Skip the rest of a statement or a variable which doesn't parse:
+	// up to a ";", which is skipped too, or to the start of another
+	// statement, or the end of a block or a method.
+	private void skipStatement() {
+		while (true) {
+			switch (current) {
+			case TOKEN_SEMI:
 				advance();
-				if (current.kind == Kind.TOKEN_LENGTH) {
-					advance();
-					return;
-				}
-				eatToken(Kind.TOKEN_ID);
-				eatToken(Kind.TOKEN_LPAREN);
-				parseExpList();
-				eatToken(Kind.TOKEN_RPAREN);
-			} else {
+				return;
+			case TOKEN_LBRACE:
+			case TOKEN_RBRACE:
+			case TOKEN_IF:
+			case TOKEN_WHILE:
+			case TOKEN_SYSTEM:
+			case TOKEN_RETURN:
+			case TOKEN_PUBLIC:
+			case TOKEN_CLASS:
+			case TOKEN_EOF:
+				return;
+			default:
 				advance();
-				parseExp();
-				eatToken(Kind.TOKEN_RBRACK);
 			}
 		}
-		return;
 	}
 
-	// TimesExp -> ! TimesExp
-	// -> NotExp
-	private void parseTimesExp() {
-		while (current.kind == Kind.TOKEN_NOT) {
+	// Skip the rest of a method which doesn't parse: up to the start of
+	// another method or class, or to the closing brace of the class,
+	// which is the last one before the next class.
+	private void skipMethod() {
+		while (current != Kind.TOKEN_PUBLIC && current != Kind.TOKEN_CLASS && current != Kind.TOKEN_EOF) {
+			if (current == Kind.TOKEN_RBRACE && (peek() == Kind.TOKEN_CLASS || peek() == Kind.TOKEN_EOF))
+				return;
 			advance();
 		}
-		parseNotExp();
-		return;
 	}
 
-	// AddSubExp -> TimesExp * TimesExp
-	// -> TimesExp
-	private void parseAddSubExp() {
-		parseTimesExp();
-		while (current.kind == Kind.TOKEN_TIMES) {
+	// Skip the rest of a class which doesn't parse, up to the start of
+	// the next one.
+	private void skipClass() {
+		while (current != Kind.TOKEN_CLASS && current != Kind.TOKEN_EOF)
 			advance();
-			parseTimesExp();
-		}
-		return;
 	}
 
-	// LtExp -> AddSubExp + AddSubExp
-	// -> AddSubExp - AddSubExp
-	// -> AddSubExp
-	private void parseLtExp() {
-		parseAddSubExp();
-		while (current.kind == Kind.TOKEN_ADD || current.kind == Kind.TOKEN_SUB) {
-			advance();
-			parseAddSubExp();
-		}
-		return;
+	// The binary operators: their precedence (0 for the other tokens),
+	// and the tag of their nodes. All of them are left-associative.
+	private static final int[] PRECEDENCE = new int[Kind.values().length];
+	private static final Tag[] BINARY = new Tag[Kind.values().length];
+
+	static {
+		binary(Kind.TOKEN_AND, 1, Tag.AND);
+		binary(Kind.TOKEN_LT, 2, Tag.LT);
+		binary(Kind.TOKEN_ADD, 3, Tag.ADD);
+		binary(Kind.TOKEN_SUB, 3, Tag.SUB);
+		binary(Kind.TOKEN_TIMES, 4, Tag.TIMES);
 	}
 
-	// AndExp -> LtExp < LtExp
-	// -> LtExp
-	private void parseAndExp() {
-		parseLtExp();
-		while (current.kind == Kind.TOKEN_LT) {
-			advance();
-			parseLtExp();
+	private static void binary(Kind kind, int precedence, Tag tag) {
+		PRECEDENCE[kind.ordinal()] = precedence;
+		BINARY[kind.ordinal()] = tag;
+	}
+
+	// The frames of the stack of "parseExp": each one is waiting for
+	// an expression to complete it, and is three ints: its kind, its
+	// token, and the number of its operands so far.
+	private static final int F_BINARY = 0; // Exp op .
+	private static final int F_NOT = 1; // ! .
+	private static final int F_PAREN = 2; // ( . )
+	private static final int F_INDEX = 3; // Exp [ . ]
+	private static final int F_NEW_ARRAY = 4; // new int [ . ]
+	private static final int F_CALL = 5; // Exp . id ( Exp, ..., . )
+
+	int[] frames = new int[3 * 16];
+	int nframes = 0;
+
+	private void push(int kind, int token, int operands) {
+		if (3 * this.nframes == this.frames.length)
+			this.frames = Arrays.copyOf(this.frames, 2 * this.frames.length);
+		int f = 3 * this.nframes++;
+		this.frames[f] = kind;
+		this.frames[f + 1] = token;
+		this.frames[f + 2] = operands;
+	}
+
+	// Complete the frames above "base" which bind at least as tight as
+	// a binary operator of precedence "precedence", the last of them
+	// with the expression just parsed.
+	private void reduce(int base, int precedence) {
+		while (this.nframes > base) {
+			int f = 3 * (this.nframes - 1);
+			int token = this.frames[f + 1];
+			if (this.frames[f] == F_NOT)
+				node(Tag.NOT, token, 1);
+			else if (this.frames[f] == F_BINARY && PRECEDENCE[this.tokens.kind(token).ordinal()] >= precedence)
+				node(BINARY[this.tokens.kind(token).ordinal()], token, 2);
+			else
+				break;
+			this.nframes--;
 		}
-		return;
 	}
 
-	// Exp -> AndExp && AndExp
-	// -> AndExp
+	// Exp -> Exp op Exp, for the binary operators op of "PRECEDENCE"
+	// -> ! Exp
+	// -> Exp . id ( ExpList )
+	// -> Exp [ Exp ]
+	// -> Exp . length
+	// -> ( Exp )
+	// -> INTEGER_LITERAL
+	// -> true
+	// -> false
+	// -> this
+	// -> id
+	// -> new int [ Exp ]
+	// -> new id ( )
+	// ExpList -> Exp ExpRest*
+	// ->
+	// ExpRest -> , Exp
+	//
+	// "!" binds tighter than the binary operators, but looser than
+	// "." and "[", and nothing follows ".length". The expressions not
+	// complete yet are kept on an explicit stack of frames instead of
+	// the Java stack, so that no nesting is too deep to parse.
 	private void parseExp() {
-		parseAndExp();
-		while (current.kind == Kind.TOKEN_AND) {
-			advance();
-			parseAndExp();
+		int base = this.nframes;
+
+		operand: for (;;) {
+			// an atom, after its prefixes
+			int token = this.pos;
+			switch (current) {
+			case TOKEN_NOT:
+				advance();
+				push(F_NOT, token, 0);
+				continue operand;
+			case TOKEN_LPAREN:
+				advance();
+				push(F_PAREN, token, 0);
+				continue operand;
+			case TOKEN_NUM:
+				advance();
+				leaf(Tag.NUM, token);
+				break;
+			case TOKEN_TRUE:
+				advance();
+				leaf(Tag.TRUE, token);
+				break;
+			case TOKEN_FALSE:
+				advance();
+				leaf(Tag.FALSE, token);
+				break;
+			case TOKEN_THIS:
+				advance();
+				leaf(Tag.THIS, token);
+				break;
+			case TOKEN_ID:
+				advance();
+				leaf(Tag.ID, token);
+				break;
+			case TOKEN_NEW:
+				advance();
+				if (current == Kind.TOKEN_INT) {
+					advance();
+					eatToken(Kind.TOKEN_LBRACK);
+					push(F_NEW_ARRAY, token, 0);
+					continue operand;
+				}
+				token = eatToken(Kind.TOKEN_ID);
+				eatToken(Kind.TOKEN_LPAREN);
+				eatToken(Kind.TOKEN_RPAREN);
+				leaf(Tag.NEW_OBJECT, token);
+				break;
+			default:
+				throw error("an expression");
+			}
+
+			// its postfixes, then a binary operator or the end of
+			// the innermost frame
+			boolean postfix = true;
+			for (;;) {
+				token = this.pos;
+				if (postfix && current == Kind.TOKEN_DOT) {
+					advance();
+					token = this.pos;
+					if (current == Kind.TOKEN_LENGTH) {
+						advance();
+						node(Tag.LENGTH, token, 1);
+						postfix = false;
+						continue;
+					}
+					eatToken(Kind.TOKEN_ID);
+					eatToken(Kind.TOKEN_LPAREN);
+					if (current == Kind.TOKEN_RPAREN) {
+						advance();
+						node(Tag.CALL, token, 1);
+						continue;
+					}
+					// the receiver, then the arguments
+					push(F_CALL, token, 1);
+					continue operand;
+				}
+				if (postfix && current == Kind.TOKEN_LBRACK) {
+					advance();
+					push(F_INDEX, token, 1);
+					continue operand;
+				}
+
+				int precedence = PRECEDENCE[current.ordinal()];
+				reduce(base, precedence);
+				if (precedence > 0) {
+					advance();
+					push(F_BINARY, token, 1);
+					continue operand;
+				}
+
+				if (this.nframes == base)
+					return;
+				int f = 3 * (this.nframes - 1);
+				token = this.frames[f + 1];
+				switch (this.frames[f]) {
+				case F_PAREN:
+					eatToken(Kind.TOKEN_RPAREN);
+					break;
+				case F_NEW_ARRAY:
+					eatToken(Kind.TOKEN_RBRACK);
+					node(Tag.NEW_INT_ARRAY, token, 1);
+					break;
+				case F_INDEX:
+					eatToken(Kind.TOKEN_RBRACK);
+					node(Tag.ARRAY_SELECT, token, 2);
+					break;
+				case F_CALL:
+					this.frames[f + 2]++;
+					if (current == Kind.TOKEN_COMMER) {
+						advance();
+						continue operand;
+					}
+					eatToken(Kind.TOKEN_RPAREN);
+					node(Tag.CALL, token, this.frames[f + 2]);
+					break;
+				default:
+					new Bug();
+				}
+				this.nframes--;
+				// a complete atom, which may have postfixes again
+				postfix = true;
+			}
 		}
-		return;
 	}
 
 	// Statement -> { Statement* }
@@ -197,19 +507,91 @@ public class Parser {
 	// -> id = Exp ;
 	// -> id [ Exp ]= Exp ;
 	private void parseStatement() {
-		// Lab1. Exercise 4: Fill in the missing code
-		// to parse a statement.
-		new util.Todo();
+		int token = this.pos;
+		int nenters = this.nenters;
+		int open = this.open;
+
+		try {
+			switch (current) {
+			case TOKEN_LBRACE:
+				enter(Tag.BLOCK, token);
+				advance();
+				int stms = parseStatements();
+				eatToken(Kind.TOKEN_RBRACE);
+				exit(Tag.BLOCK, token, stms);
+				return;
+			case TOKEN_IF:
+				enter(Tag.IF, token);
+				advance();
+				eatToken(Kind.TOKEN_LPAREN);
+				parseExp();
+				eatToken(Kind.TOKEN_RPAREN);
+				parseStatement();
+				eatToken(Kind.TOKEN_ELSE);
+				parseStatement();
+				exit(Tag.IF, token, 3);
+				return;
+			case TOKEN_WHILE:
+				enter(Tag.WHILE, token);
+				advance();
+				eatToken(Kind.TOKEN_LPAREN);
+				parseExp();
+				eatToken(Kind.TOKEN_RPAREN);
+				parseStatement();
+				exit(Tag.WHILE, token, 2);
+				return;
+			case TOKEN_SYSTEM:
+				enter(Tag.PRINT, token);
+				advance();
+				eatToken(Kind.TOKEN_DOT);
+				eatToken(Kind.TOKEN_OUT);
+				eatToken(Kind.TOKEN_DOT);
+				eatToken(Kind.TOKEN_PRINTLN);
+				eatToken(Kind.TOKEN_LPAREN);
+				parseExp();
+				eatToken(Kind.TOKEN_RPAREN);
+				eatToken(Kind.TOKEN_SEMI);
+				exit(Tag.PRINT, token, 1);
+				return;
+			case TOKEN_ID:
+				advance();
+				if (current == Kind.TOKEN_LBRACK) {
+					enter(Tag.ARRAY_ASSIGN, token);
+					advance();
+					parseExp();
+					eatToken(Kind.TOKEN_RBRACK);
+					eatToken(Kind.TOKEN_ASSIGN);
+					parseExp();
+					eatToken(Kind.TOKEN_SEMI);
+					exit(Tag.ARRAY_ASSIGN, token, 2);
+					return;
+				}
+				enter(Tag.ASSIGN, token);
+				eatToken(Kind.TOKEN_ASSIGN);
+				parseExp();
+				eatToken(Kind.TOKEN_SEMI);
+				exit(Tag.ASSIGN, token, 1);
+				return;
+			default:
+				throw error("a statement");
+			}
+		} catch (SyntaxError e) {
+			recover(nenters, open, token);
+			skipStatement();
+		}
 	}
 
 	// Statements -> Statement Statements
 	// ->
-	private void parseStatements() {
-		while (current.kind == Kind.TOKEN_LBRACE || current.kind == Kind.TOKEN_IF || current.kind == Kind.TOKEN_WHILE
-				|| current.kind == Kind.TOKEN_SYSTEM || current.kind == Kind.TOKEN_ID) {
+	// Return the number of statements.
+	private int parseStatements() {
+		int n = 0;
+		while (current == Kind.TOKEN_LBRACE || current == Kind.TOKEN_IF || current == Kind.TOKEN_WHILE
+				|| current == Kind.TOKEN_SYSTEM || current == Kind.TOKEN_ID) {
 			parseStatement();
+			n++;
 		}
-		return;
+		return n;
 	}
 
 	// Type -> int []
@@ -217,87 +599,321 @@ public class Parser {
 	// -> int
 	// -> id
 	private void parseType() {
-		// Lab1. Exercise 4: Fill in the missing code
-		// to parse a type.
-		new util.Todo();
+		int token = this.pos;
+
+		switch (current) {
+		case TOKEN_INT:
+			advance();
+			if (current == Kind.TOKEN_LBRACK) {
+				advance();
+				eatToken(Kind.TOKEN_RBRACK);
+				leaf(Tag.INT_ARRAY_TYPE, token);
+				return;
+			}
+			leaf(Tag.INT_TYPE, token);
+			return;
+		case TOKEN_BOOLEAN:
+			advance();
+			leaf(Tag.BOOLEAN_TYPE, token);
+			return;
+		case TOKEN_ID:
+			advance();
+			leaf(Tag.CLASS_TYPE, token);
+			return;
+		default:
+			throw error("a type");
+		}
 	}
 
 	// VarDecl -> Type id ;
 	private void parseVarDecl() {
-		// to parse the "Type" nonterminal in this method, instead of writing
-		// a fresh one.
-		parseType();
-		eatToken(Kind.TOKEN_ID);
-		eatToken(Kind.TOKEN_SEMI);
-		return;
+		int start = this.pos;
+		int nenters = this.nenters;
+		int open = this.open;
+
+		try {
+			enter(Tag.VAR, start);
+			// to parse the "Type" nonterminal in this method, instead of writing
+			// a fresh one.
+			parseType();
+			int token = eatToken(Kind.TOKEN_ID);
+			eatToken(Kind.TOKEN_SEMI);
+			exit(Tag.VAR, token, 1);
+		} catch (SyntaxError e) {
+			recover(nenters, open, start);
+			skipStatement();
+		}
 	}
 
 	// VarDecls -> VarDecl VarDecls
 	// ->
 	private void parseVarDecls() {
-		while (current.kind == Kind.TOKEN_INT || current.kind == Kind.TOKEN_BOOLEAN || current.kind == Kind.TOKEN_ID) {
+		int n = 0;
+		enter(Tag.VARS, this.pos);
+		// a statement may start with an id as well, but it isn't
+		// followed by another id
+		while (current == Kind.TOKEN_INT || current == Kind.TOKEN_BOOLEAN
+				|| (current == Kind.TOKEN_ID && peek() == Kind.TOKEN_ID)) {
 			parseVarDecl();
+			n++;
 		}
-		return;
+		exit(Tag.VARS, Tree.NONE, n);
 	}
 
 	// FormalList -> Type id FormalRest*
 	// ->
 	// FormalRest -> , Type id
 	private void parseFormalList() {
-		if (current.kind == Kind.TOKEN_INT || current.kind == Kind.TOKEN_BOOLEAN || current.kind == Kind.TOKEN_ID) {
-			parseType();
-			eatToken(Kind.TOKEN_ID);
-			while (current.kind == Kind.TOKEN_COMMER) {
+		int n = 0;
+		enter(Tag.FORMALS, this.pos);
+		if (current == Kind.TOKEN_INT || current == Kind.TOKEN_BOOLEAN || current == Kind.TOKEN_ID) {
+			parseFormal();
+			n++;
+			while (current == Kind.TOKEN_COMMER) {
 				advance();
-				parseType();
-				eatToken(Kind.TOKEN_ID);
+				parseFormal();
+				n++;
 			}
 		}
-		return;
+		exit(Tag.FORMALS, Tree.NONE, n);
+	}
+
+	// Formal -> Type id
+	private void parseFormal() {
+		enter(Tag.FORMAL, this.pos);
+		parseType();
+		exit(Tag.FORMAL, eatToken(Kind.TOKEN_ID), 1);
+	}
+
+	// Body -> { VarDecl* Statement* return Exp ;}
+	// The BODY node itself is up to the caller.
+	private void parseBody() {
+		int lbrace = eatToken(Kind.TOKEN_LBRACE);
+		parseVarDecls();
+		enter(Tag.BLOCK, this.pos);
+		exit(Tag.BLOCK, lbrace, parseStatements());
+		eatToken(Kind.TOKEN_RETURN);
+		parseExp();
+		eatToken(Kind.TOKEN_SEMI);
+		eatToken(Kind.TOKEN_RBRACE);
+	}
+
+	// skip a body, from its "{" to the matching "}"
+	private void skipBody() {
+		int depth = 0;
+		do {
+			if (current == Kind.TOKEN_LBRACE)
+				depth++;
+			else if (current == Kind.TOKEN_RBRACE)
+				depth--;
+			else if (current == Kind.TOKEN_EOF)
+				eatToken(Kind.TOKEN_RBRACE);
+			advance();
+		} while (depth > 0);
+	}
+
+	// Parse a body skipped by a lazy parse of "tree", and return the
+	// chain of its children. Its errors go to "diagnostics", and if it
+	// doesn't parse, it gets a single ERROR child.
+	private static int parseSkippedBody(Tree tree, int body, Diagnostics diagnostics) {
+		Parser parser = new Parser(tree, tree.token(body), false, diagnostics);
+		try {
+			parser.parseBody();
+			return parser.builder.chain(3);
+		} catch (SyntaxError e) {
+			parser.recover(0, 0, tree.token(body));
+			return parser.builder.chain(1);
+		}
 	}
 
 	// Method -> public Type id ( FormalList )
 	// { VarDecl* Statement* return Exp ;}
 	private void parseMethod() {
-		// Lab1. Exercise 4: Fill in the missing code
-		// to parse a method.
-		new util.Todo();
-		return;
+		int start = this.pos;
+		int nenters = this.nenters;
+		int open = this.open;
+
+		try {
+			enter(Tag.METHOD, start);
+			eatToken(Kind.TOKEN_PUBLIC);
+			parseType();
+			int token = eatToken(Kind.TOKEN_ID);
+			eatToken(Kind.TOKEN_LPAREN);
+			parseFormalList();
+			eatToken(Kind.TOKEN_RPAREN);
+
+			int lbrace = this.pos;
+			enter(Tag.BODY, lbrace);
+			if (this.lazy) {
+				// the errors in the body are found when it is parsed
+				if (current != Kind.TOKEN_LBRACE)
+					eatToken(Kind.TOKEN_LBRACE);
+				skipBody();
+				exit(Tag.BODY, lbrace, 0);
+			} else {
+				parseBody();
+				exit(Tag.BODY, lbrace, 3);
+			}
+
+			exit(Tag.METHOD, token, 3);
+		} catch (SyntaxError e) {
+			recover(nenters, open, start);
+			skipMethod();
+		}
 	}
 
 	// MethodDecls -> MethodDecl MethodDecls
 	// ->
 	private void parseMethodDecls() {
-		while (current.kind == Kind.TOKEN_PUBLIC) {
+		int n = 0;
+		enter(Tag.METHODS, this.pos);
+		while (current == Kind.TOKEN_PUBLIC) {
 			parseMethod();
+			n++;
 		}
-		return;
+		exit(Tag.METHODS, Tree.NONE, n);
 	}
 
 	// ClassDecl -> class id { VarDecl* MethodDecl* }
 	// -> class id extends id { VarDecl* MethodDecl* }
 	private void parseClassDecl() {
-		eatToken(Kind.TOKEN_CLASS);
-		eatToken(Kind.TOKEN_ID);
-		if (current.kind == Kind.TOKEN_EXTENDS) {
-			eatToken(Kind.TOKEN_EXTENDS);
-			eatToken(Kind.TOKEN_ID);
+		int superClass = Tree.NONE;
+		int start = this.pos;
+		int nenters = this.nenters;
+		int open = this.open;
+
+		try {
+			enter(Tag.CLASS, start);
+			eatToken(Kind.TOKEN_CLASS);
+			int token = eatToken(Kind.TOKEN_ID);
+			if (current == Kind.TOKEN_EXTENDS) {
+				eatToken(Kind.TOKEN_EXTENDS);
+				superClass = eatToken(Kind.TOKEN_ID);
+			}
+			eatToken(Kind.TOKEN_LBRACE);
+			parseVarDecls();
+			parseMethodDecls();
+			eatToken(Kind.TOKEN_RBRACE);
+
+			// the superclass comes last, as it is optional
+			if (superClass == Tree.NONE)
+				exit(Tag.CLASS, token, 2);
+			else {
+				leaf(Tag.ID, superClass);
+				exit(Tag.CLASS, token, 3);
+			}
+		} catch (SyntaxError e) {
+			recover(nenters, open, start);
+			skipClass();
 		}
-		eatToken(Kind.TOKEN_LBRACE);
-		parseVarDecls();
-		parseMethodDecls();
-		eatToken(Kind.TOKEN_RBRACE);
-		return;
 	}
 
 	// ClassDecls -> ClassDecl ClassDecls
 	// ->
-	private void parseClassDecls() {
-		while (current.kind == Kind.TOKEN_CLASS) {
+	// Return the number of classes.
+	private int parseClassDecls() {
+		int n = 0;
+		while (current == Kind.TOKEN_CLASS) {
+			release();
 			parseClassDecl();
+			n++;
+		}
+		return n;
+	}
+
+	// the classes [from, to) parsed by one thread into their own tree
+	private static class Part {
+		Tree tree;
+		int[] classes; // the classes in "tree"
+		int end; // the token after the last class
+		boolean failed; // whether the classes have errors
+	}
+
+	// Parse the ClassDecls with "jobs" threads into the tree of
+	// "builder", and return the number of classes. The classes are
+	// found by matching braces, then parsed by groups in their own
+	// trees, which are grafted into this one in order.
+	//
+	// Braces which don't match may hide the classes, so if there is any
+	// error, the classes are parsed again by this thread alone, to find
+	// the errors a sequential parse does.
+	private int parseClassDeclsParallel() {
+		// the "class" tokens outside of any braces
+		int[] starts = new int[16];
+		int count = 0;
+		int depth = 0;
+		for (int i = this.pos; i < this.tokens.size(); i++) {
+			Kind kind = this.tokens.kind(i);
+			if (kind == Kind.TOKEN_LBRACE)
+				depth++;
+			else if (kind == Kind.TOKEN_RBRACE)
+				depth--;
+			else if (kind == Kind.TOKEN_CLASS && depth == 0) {
+				if (count == starts.length)
+					starts = Arrays.copyOf(starts, 2 * count);
+				starts[count++] = i;
+			}
+		}
+		// nothing but classes at the top level
+		if (count == 0 || this.pos != starts[0])
+			return parseClassDecls();
+
+		// a few groups per thread, to balance the load
+		int groups = Math.min(count, 4 * this.jobs);
+		List<Callable<Part>> tasks = new ArrayList<Callable<Part>>();
+		for (int g = 0; g < groups; g++) {
+			int from = (int) ((long) count * g / groups);
+			int to = (int) ((long) count * (g + 1) / groups);
+			int[] classes = starts;
+			int next = to < count ? starts[to] : Tree.NONE;
+			tasks.add(() -> {
+				Part part = new Part();
+				part.tree = new Tree(this.tokens, newStorage(classes[to - 1] - classes[from]));
+				Diagnostics diagnostics = new Diagnostics(null);
+				Parser parser = new Parser(part.tree, classes[from], this.lazy, diagnostics);
+				part.classes = new int[to - from];
+				for (int i = from; i < to; i++) {
+					if (parser.pos != classes[i]) {
+						part.failed = true;
+						break;
+					}
+					parser.parseClassDecl();
+					part.classes[i - from] = parser.builder.pop();
+				}
+				part.failed |= diagnostics.count() > 0 || (next != Tree.NONE && parser.pos != next);
+				part.end = parser.pos;
+				return part;
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(this.jobs);
+		List<Part> parts = new ArrayList<Part>();
+		try {
+			for (Future<Part> future : pool.invokeAll(tasks))
+				parts.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw new Error("parsing the classes failed", e);
+		} finally {
+			pool.shutdown();
+		}
+
+		for (Part part : parts) {
+			if (part.failed) {
+				for (Part p : parts)
+					p.tree.free();
+				return parseClassDecls();
+			}
+		}
+		for (Part part : parts) {
+			int shift = this.builder.tree().graft(part.tree);
+			part.tree.free();
+			for (int c : part.classes)
+				this.builder.push(c + shift);
+			this.open += part.classes.length;
+			this.pos = part.end;
 		}
-		return;
+		this.current = this.tokens.kind(this.pos);
+		return count;
 	}
 
 	// MainClass -> class id
@@ -308,22 +924,203 @@ public class Parser {
 	// }
 	// }
 	private void parseMainClass() {
-		// Lab1. Exercise 4: Fill in the missing code
-		// to parse a main class as described by the
-		// grammar above.
-		new util.Todo();
+		int start = this.pos;
+		int nenters = this.nenters;
+		int open = this.open;
+
+		try {
+			enter(Tag.MAIN_CLASS, start);
+			eatToken(Kind.TOKEN_CLASS);
+			int token = eatToken(Kind.TOKEN_ID);
+			eatToken(Kind.TOKEN_LBRACE);
+			eatToken(Kind.TOKEN_PUBLIC);
+			eatToken(Kind.TOKEN_STATIC);
+			eatToken(Kind.TOKEN_VOID);
+			eatToken(Kind.TOKEN_MAIN);
+			eatToken(Kind.TOKEN_LPAREN);
+			eatToken(Kind.TOKEN_STRING);
+			eatToken(Kind.TOKEN_LBRACK);
+			eatToken(Kind.TOKEN_RBRACK);
+			leaf(Tag.ID, eatToken(Kind.TOKEN_ID));
+			eatToken(Kind.TOKEN_RPAREN);
+			eatToken(Kind.TOKEN_LBRACE);
+			parseStatement();
+			eatToken(Kind.TOKEN_RBRACE);
+			eatToken(Kind.TOKEN_RBRACE);
+			exit(Tag.MAIN_CLASS, token, 2);
+		} catch (SyntaxError e) {
+			recover(nenters, open, start);
+			skipClass();
+		}
 	}
 
 	// Program -> MainClass ClassDecl*
 	private void parseProgram() {
+		enter(Tag.PROGRAM, this.pos);
 		parseMainClass();
-		parseClassDecls();
-		eatToken(Kind.TOKEN_EOF);
-		return;
+		int classes = this.jobs > 1 && this.builder != null ? parseClassDeclsParallel() : parseClassDecls();
+		// skip anything else than classes
+		while (current != Kind.TOKEN_EOF) {
+			error(describe(Kind.TOKEN_CLASS));
+			skipClass();
+			classes += parseClassDecls();
+		}
+		exit(Tag.PROGRAM, Tree.NONE, 1 + classes);
 	}
 
-	public void parse() {
+	// Parse the program, and return its tree. The syntax errors go to
+	// "diagnostics()", and the parts of the program which don't parse
+	// are ERROR nodes.
+	public Tree parse() {
+		Tree tree = new Tree(this.tokens, newStorage(this.capacity));
+		Diagnostics diagnostics = this.diagnostics;
+		this.builder = new TreeBuilder(tree, Control.ConAst.share);
+		this.listener = this.builder;
+		if (this.lazy)
+			tree.setLazy((t, body) -> parseSkippedBody(t, body, diagnostics));
 		parseProgram();
-		return;
+		tree.setRoot(this.builder.pop());
+		return tree;
+	}
+
+	// Parse the program, only telling "listener" about its nodes. No
+	// tree is built, and the tokens of a class are dropped once it
+	// has been parsed, so "tokens()" only holds the tokens of the
+	// nodes still open.
+	public void parse(Listener listener) {
+		this.builder = null;
+		this.listener = listener;
+		this.lazy = false;
+		this.jobs = 1;
+		parseProgram();
+	}
+
+	// /////////////////////////////////////////////
+	// incremental parsing
+
+	// Return the tree of "tokens", the tokens of the source of "tree"
+	// after "edit", as given by "Lexer.relex". Only the innermost
+	// method, or else class, around the tokens changed is parsed again:
+	// its new nodes are added to "tree" in place of the old ones, and
+	// the other nodes are kept, their tokens moved. The whole program is
+	// parsed again if the edit isn't inside a class, or changes where
+	// it ends, and when the dead nodes take more room than the live
+	// ones, or the tree has errors. "tree" can't be used anymore,
+	// unless it is the tree returned. The errors of the parts parsed
+	// again go to "diagnostics".
+	public static Tree reparse(Tree tree, TokenBuffer tokens, Edit edit, Diagnostics diagnostics) {
+		TokenBuffer old = tree.tokens();
+		int shift = edit.newEnd - edit.oldEnd;
+
+		// only the spacing has changed
+		if (edit.first == edit.newEnd && edit.oldEnd == edit.newEnd) {
+			tree.retoken(tokens, edit.oldEnd, 0);
+			return tree;
+		}
+		if (hasErrors(tree)) {
+			tree.free();
+			return new Parser(tokens, diagnostics).parse();
+		}
+
+		// The class around the edit, from its first token up to its
+		// closing brace. The first tokens are found before the tree is
+		// moved onto the new tokens: they are before the edit, so they
+		// don't move, unlike the tokens of the nodes which may follow
+		// them in the edit.
+		int prevClass = Tree.NONE;
+		int clazz = tree.child(tree.root());
+		int classStart = Tree.NONE;
+		int classEnd = Tree.NONE;
+		for (; clazz != Tree.NONE; prevClass = clazz, clazz = tree.next(clazz)) {
+			int next = tree.next(clazz);
+			classStart = start(tree, clazz);
+			classEnd = next == Tree.NONE ? old.size() - 2 : start(tree, next) - 1;
+			if (around(edit, classStart, classEnd))
+				break;
+		}
+
+		// and the method around it
+		int methods = Tree.NONE;
+		int prevMethod = Tree.NONE;
+		int method = Tree.NONE;
+		int methodStart = Tree.NONE;
+		int methodEnd = Tree.NONE;
+		if (clazz != Tree.NONE && tree.tag(clazz) == Tag.CLASS) {
+			methods = tree.child(clazz, 1);
+			for (method = tree.child(methods); method != Tree.NONE; prevMethod = method, method = tree.next(method)) {
+				int next = tree.next(method);
+				methodStart = start(tree, method);
+				methodEnd = next == Tree.NONE ? classEnd - 1 : start(tree, next) - 1;
+				if (around(edit, methodStart, methodEnd))
+					break;
+			}
+		}
+
+		if (clazz != Tree.NONE && tree.dead() <= tree.size() / 2) {
+			tree.retoken(tokens, edit.oldEnd, shift);
+			if (method != Tree.NONE && reparse(tree, methods, prevMethod, method, methodStart,
+					methodEnd + shift + 1, diagnostics))
+				return tree;
+			if (reparse(tree, tree.root(), prevClass, clazz, classStart, classEnd + shift + 1, diagnostics))
+				return tree;
+		}
+		tree.free();
+		return new Parser(tokens, diagnostics).parse();
+	}
+
+	// whether a class or a method of "tree" is an ERROR node, whose
+	// tokens aren't known
+	private static boolean hasErrors(Tree tree) {
+		for (int c = tree.child(tree.root()); c != Tree.NONE; c = tree.next(c)) {
+			if (tree.tag(c) == Tag.ERROR)
+				return true;
+			if (tree.tag(c) != Tag.CLASS)
+				continue;
+			for (int m = tree.child(tree.child(c, 1)); m != Tree.NONE; m = tree.next(m))
+				if (tree.tag(m) == Tag.ERROR)
+					return true;
+		}
+		return false;
+	}
+
+	// the first token of the class or method "n": "class" before its
+	// name, or "public" before its type
+	private static int start(Tree tree, int n) {
+		if (tree.tag(n) == Tag.METHOD)
+			return tree.token(tree.child(n)) - 1;
+		return tree.token(n) - 1;
+	}
+
+	// whether the tokens changed by "edit" are after the old token
+	// "start" and before the old token "end"
+	private static boolean around(Edit edit, int start, int end) {
+		return start < edit.first && edit.oldEnd <= end;
+	}
+
+	// Parse again the class or method "old", the child of "parent"
+	// after "prev", from the token "start", and put it in place, unless
+	// it doesn't end right before the token "end" anymore. Its errors
+	// go to "diagnostics" only if it is put in place: otherwise the part
+	// is parsed again, and they would be reported twice.
+	private static boolean reparse(Tree tree, int parent, int prev, int old, int start, int end,
+			Diagnostics diagnostics) {
+		Diagnostics attempt = new Diagnostics(null);
+		Parser parser = new Parser(tree, start, Control.ConAst.lazy, attempt);
+		switch (tree.tag(old)) {
+		case MAIN_CLASS:
+			parser.parseMainClass();
+			break;
+		case CLASS:
+			parser.parseClassDecl();
+			break;
+		default:
+			parser.parseMethod();
+			break;
+		}
+		if (parser.pos != end)
+			return false;
+		tree.replace(parent, prev, old, parser.builder.pop());
+		diagnostics.add(attempt);
+		return true;
 	}
 }
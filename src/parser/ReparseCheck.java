@@ -0,0 +1,164 @@
+package parser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import ast.Tag;
+import ast.Tree;
+import lexer.Edit;
+import lexer.Lexer;
+import lexer.Source;
+import lexer.Token.Kind;
+import lexer.TokenBuffer;
+import util.ByteWriter;
+import util.Diagnostics;
+
+// A check of the incremental parser: random edits are made to a file,
+// one after the other, and the tree given by "Parser.reparse" after
+// each one is compared with the tree of a full parse of the file
+// edited, and so are the errors, when there were none before.
+//
+// The edits are the ones of an editor: a number changed, a name typed,
+// a method or a class cut and then pasted back, blanks, or a few
+// tokens which may well be syntax errors, and are taken back by the
+// next edit.
+public class ReparseCheck {
+	private static final String[] SNIPPETS = { "0", " public int z() { return 1; }", " x", ";", "}", "// note\n",
+			"\n\t " };
+
+	private String fname;
+	private Random random;
+	private Edit undo; // the edit which takes back the last one, or null
+
+	public ReparseCheck(String fname, long seed) {
+		this.fname = fname;
+		this.random = new Random(seed);
+	}
+
+	// Make "edits" random edits to "src", and report the first one
+	// whose tree, or errors, aren't the ones of a full parse to
+	// "diagnostics". Return the number of edits whose tree has been
+	// parsed again in place.
+	public int run(Source src, int edits, Diagnostics diagnostics) {
+		Diagnostics errors = new Diagnostics(null);
+		TokenBuffer tokens = new Lexer(this.fname, src, errors).lexAll();
+		Tree tree = new Parser(tokens, errors).parse();
+		dump(tree);
+		// whether the source has no errors: the errors of the parts
+		// parsed again are then all of them
+		boolean clean = errors.count() == 0;
+		int kept = 0;
+		for (int i = 0; i < edits; i++) {
+			Edit edit = this.edit(tokens);
+			String what = "edit " + (i + 1) + " at offset " + edit.offset;
+			errors = new Diagnostics(null);
+			TokenBuffer next = Lexer.relex(this.fname, tokens, edit, errors);
+			Tree reparsed = Parser.reparse(tree, next, edit, errors);
+			if (reparsed == tree)
+				kept++;
+			Diagnostics fullErrors = new Diagnostics(null);
+			Tree full = new Parser(new Lexer(this.fname, next.source(), fullErrors).lexAll(), fullErrors).parse();
+			// before the skipped bodies are parsed, whose errors go
+			// elsewhere
+			boolean sameErrors = !clean || messages(errors).equals(messages(fullErrors));
+			boolean same = dump(reparsed).equals(dump(full));
+			full.free();
+			if (!same) {
+				diagnostics.error("reparse check: the tree after " + what + " isn't the tree of a full parse");
+				break;
+			}
+			if (!sameErrors) {
+				diagnostics.error("reparse check: the errors after " + what + " aren't the errors of a full parse");
+				break;
+			}
+			clean = fullErrors.count() == 0;
+			tree = reparsed;
+			tokens = next;
+		}
+		tree.free();
+		return kept;
+	}
+
+	// a random edit of the source of "tokens"
+	private Edit edit(TokenBuffer tokens) {
+		if (this.undo != null) {
+			Edit edit = this.undo;
+			this.undo = null;
+			return edit;
+		}
+		// the trailing TOKEN_EOF isn't edited
+		int count = tokens.size() - 1;
+		if (count == 0)
+			return new Edit(0, 0, "\n");
+		while (true) {
+			int t = this.random.nextInt(count);
+			Kind kind = tokens.kind(t);
+			switch (this.random.nextInt(5)) {
+			case 0:
+				if (kind == Kind.TOKEN_NUM)
+					return new Edit(tokens.offset(t), tokens.length(t), Integer.toString(this.random.nextInt(100000)));
+				break;
+			case 1:
+				if (kind == Kind.TOKEN_ID)
+					return new Edit(tokens.offset(t), 0, "zz");
+				break;
+			case 2:
+				// a method, but not "main", or a class, but not the main
+				// one, up to its closing brace
+				if (kind == Kind.TOKEN_PUBLIC && tokens.kind(t + 1) != Kind.TOKEN_STATIC
+						|| kind == Kind.TOKEN_CLASS && t > 0)
+					return this.cut(tokens, t);
+				break;
+			default:
+				// anywhere between the token and the next one
+				int end = tokens.offset(t) + tokens.length(t);
+				int at = end + this.random.nextInt(tokens.offset(t + 1) - end + 1);
+				String snippet = SNIPPETS[this.random.nextInt(SNIPPETS.length)];
+				this.undo = new Edit(at, snippet.length(), "");
+				return new Edit(at, 0, snippet);
+			}
+		}
+	}
+
+	// Cut the tokens from "t" to the brace which closes the first one
+	// after it, and paste them back with the next edit.
+	private Edit cut(TokenBuffer tokens, int t) {
+		int depth = 0;
+		int j = t;
+		for (; j < tokens.size() - 1; j++) {
+			Kind kind = tokens.kind(j);
+			if (kind == Kind.TOKEN_LBRACE)
+				depth++;
+			else if (kind == Kind.TOKEN_RBRACE && --depth == 0)
+				break;
+		}
+		int from = tokens.offset(t);
+		int to = j < tokens.size() - 1 ? tokens.offset(j) + 1 : tokens.source().length();
+		this.undo = new Edit(from, 0, tokens.source().string(from, to - from));
+		return new Edit(from, to - from, "");
+	}
+
+	private static String messages(Diagnostics diagnostics) {
+		StringBuilder messages = new StringBuilder();
+		for (Diagnostics.Diagnostic d : diagnostics.list())
+			messages.append(d.line).append(':').append(d.column).append(": ").append(d.message).append('\n');
+		return messages.toString();
+	}
+
+	// the dump of "tree", with the bodies skipped by a lazy parse parsed
+	private static String dump(Tree tree) {
+		for (int c = tree.child(tree.root()); c != Tree.NONE; c = tree.next(c)) {
+			if (tree.tag(c) != Tag.CLASS)
+				continue;
+			for (int m = tree.child(tree.child(c, 1)); m != Tree.NONE; m = tree.next(m)) {
+				if (tree.tag(m) == Tag.METHOD)
+					tree.body(m);
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ByteWriter out = new ByteWriter(bytes);
+		tree.dump(tree.root(), out);
+		out.flush();
+		return bytes.toString();
+	}
+}
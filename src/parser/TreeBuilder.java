@@ -0,0 +1,230 @@
+package parser;
+
+import java.util.Arrays;
+
+import ast.Tag;
+import ast.Tree;
+import lexer.Token.Kind;
+import lexer.TokenBuffer;
+
+// The listener which builds a "Tree" from the nodes parsed: the nodes
+// exited wait on a stack until their parent is exited and takes them
+// as its children.
+//
+// When "share" is set, the expressions without side effects are
+// hash-consed within each method: an expression with the tag, the name
+// or value, and the children of one built before in the method isn't
+// built again, and stands for that one through a REF node. The REF is
+// only added once the expression is taken by a parent which isn't
+// shared itself, so a shared expression costs a single node, whatever
+// its size, and two shared expressions are equal when they stand for
+// the same node (see "Tree.canonical"). The table starts again with
+// each class and method, where the same names may mean other things.
+public class TreeBuilder implements Listener {
+	private Tree tree;
+	private int[] stack; // the nodes without a parent yet, or -2 - n for
+							// a shared node "n" without its REF yet
+	private int[] refs; // the token of each REF still to add
+	private int depth;
+	private Table table; // the expressions of the method, or null
+
+	public TreeBuilder(Tree tree, boolean share) {
+		this.tree = tree;
+		this.stack = new int[64];
+		this.refs = new int[64];
+		this.depth = 0;
+		this.table = share ? new Table() : null;
+		if (share)
+			tree.setSharing();
+	}
+
+	public Tree tree() {
+		return this.tree;
+	}
+
+	@Override
+	public void enter(Tag tag, int token) {
+		if (this.table != null && (tag == Tag.METHOD || tag == Tag.CLASS || tag == Tag.MAIN_CLASS))
+			this.table.clear();
+	}
+
+	@Override
+	public void exit(Tag tag, int token, int children) {
+		if (this.table == null || !shareable(tag)) {
+			this.push(this.tree.add(tag, token, this.chain(children)));
+			return;
+		}
+
+		int atom = this.atom(tag, token);
+		int a = children > 0 ? canonical(this.stack[this.depth - children]) : Tree.NONE;
+		int b = children > 1 ? canonical(this.stack[this.depth - children + 1]) : Tree.NONE;
+		int slot = this.table.find(tag.ordinal(), atom, a, b);
+		int shared = this.table.node(slot);
+		if (shared != Tree.NONE) {
+			// its children are shared too, and have no nodes
+			this.depth -= children;
+			this.push(-2 - shared, token);
+			return;
+		}
+		int node = this.tree.add(tag, token, this.chain(children));
+		this.table.put(slot, node, tag.ordinal(), atom, a, b);
+		this.push(node);
+	}
+
+	// the expressions which are only worth their value: a call may
+	// have side effects, and each "new" is another object
+	private static boolean shareable(Tag tag) {
+		switch (tag) {
+		case ADD:
+		case AND:
+		case ARRAY_SELECT:
+		case FALSE:
+		case ID:
+		case LENGTH:
+		case LT:
+		case NOT:
+		case NUM:
+		case SUB:
+		case THIS:
+		case TIMES:
+		case TRUE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// what tells apart the nodes of "tag" with the same children: the
+	// name of an ID, the value of a NUM
+	private int atom(Tag tag, int token) {
+		TokenBuffer tokens = this.tree.tokens();
+		if (tag == Tag.ID && tokens.kind(token) == Kind.TOKEN_ID)
+			return tokens.symbol(token).id;
+		if (tag == Tag.NUM)
+			return tokens.value(token);
+		return 0;
+	}
+
+	private static int canonical(int entry) {
+		return entry < Tree.NONE ? -2 - entry : entry;
+	}
+
+	public void push(int node) {
+		this.push(node, Tree.NONE);
+	}
+
+	private void push(int entry, int token) {
+		if (this.depth == this.stack.length) {
+			this.stack = Arrays.copyOf(this.stack, 2 * this.depth);
+			this.refs = Arrays.copyOf(this.refs, 2 * this.depth);
+		}
+		this.refs[this.depth] = token;
+		this.stack[this.depth++] = entry;
+	}
+
+	public int pop() {
+		this.depth--;
+		return this.node(this.depth);
+	}
+
+	// the node of the stack entry "i", after adding its REF if it is
+	// shared
+	private int node(int i) {
+		int entry = this.stack[i];
+		if (entry < Tree.NONE)
+			return this.tree.add(Tag.REF, this.refs[i], -2 - entry);
+		return entry;
+	}
+
+	// Pop the last "n" nodes, chain them as siblings, and return the
+	// first one, or NONE.
+	public int chain(int n) {
+		if (n == 0)
+			return Tree.NONE;
+		int base = this.depth - n;
+		for (int i = base; i < this.depth; i++)
+			this.stack[i] = this.node(i);
+		for (int i = base; i < this.depth - 1; i++)
+			this.tree.pair(this.stack[i], this.stack[i + 1]);
+		this.depth = base;
+		return this.stack[base];
+	}
+
+	// An open-addressing table of the expressions of a method, by their
+	// tag, atom and canonical children, with linear probing. Each slot
+	// is five ints: the node, or NONE if the slot is free, and its key.
+	private static class Table {
+		private static final int SLOT = 5;
+
+		private int[] slots = new int[SLOT * 256];
+		private int mask = 255; // number of slots - 1
+		private int count = 0;
+		private int[] used = new int[64]; // the slots taken, to clear them
+
+		Table() {
+			Arrays.fill(this.slots, Tree.NONE);
+		}
+
+		private static int hash(int tag, int atom, int a, int b) {
+			int h = tag;
+			h = h * 0x9e3779b1 + atom;
+			h = h * 0x9e3779b1 + a;
+			h = h * 0x9e3779b1 + b;
+			return h ^ (h >>> 15);
+		}
+
+		// the slot of the key, or the free slot where it goes
+		int find(int tag, int atom, int a, int b) {
+			int i = hash(tag, atom, a, b) & this.mask;
+			while (true) {
+				int at = SLOT * i;
+				if (this.slots[at] == Tree.NONE)
+					return i;
+				if (this.slots[at + 1] == tag && this.slots[at + 2] == atom && this.slots[at + 3] == a
+						&& this.slots[at + 4] == b)
+					return i;
+				i = (i + 1) & this.mask;
+			}
+		}
+
+		int node(int slot) {
+			return this.slots[SLOT * slot];
+		}
+
+		void put(int slot, int node, int tag, int atom, int a, int b) {
+			int at = SLOT * slot;
+			this.slots[at] = node;
+			this.slots[at + 1] = tag;
+			this.slots[at + 2] = atom;
+			this.slots[at + 3] = a;
+			this.slots[at + 4] = b;
+			if (this.count == this.used.length)
+				this.used = Arrays.copyOf(this.used, 2 * this.count);
+			this.used[this.count++] = slot;
+			if (2 * this.count > this.mask)
+				this.grow();
+		}
+
+		private void grow() {
+			int[] old = this.slots;
+			int[] used = this.used;
+			int count = this.count;
+			this.slots = new int[2 * old.length];
+			this.used = new int[used.length];
+			Arrays.fill(this.slots, Tree.NONE);
+			this.mask = 2 * this.mask + 1;
+			this.count = 0;
+			for (int k = 0; k < count; k++) {
+				int at = SLOT * used[k];
+				int slot = this.find(old[at + 1], old[at + 2], old[at + 3], old[at + 4]);
+				this.put(slot, old[at], old[at + 1], old[at + 2], old[at + 3], old[at + 4]);
+			}
+		}
+
+		void clear() {
+			for (int k = 0; k < this.count; k++)
+				this.slots[SLOT * this.used[k]] = Tree.NONE;
+			this.count = 0;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A buffered stream of bytes, for dumps which can get very large.
+// Unlike "System.out", it takes no lock, doesn't flush at each line,
+// and writes numbers and source text without building strings.
+// It's meant to be used by a single thread.
+//
+// A failure to write throws an "UncheckedIOException", so that the
+// dumps don't have to handle it: what to do about it is up to the
+// driver.
+public class ByteWriter {
+	// the standard output, which is flushed when the compiler exits
+	public static final ByteWriter out = new ByteWriter(new FileOutputStream(FileDescriptor.out));
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				out.drain();
+			} catch (IOException e) {
+				// the compiler is exiting anyway, and must not call
+				// "System.exit" again from a shutdown hook
+			}
+		}));
+	}
+
+	private OutputStream stream;
+	private byte[] buf;
+	private int n; // number of bytes in "buf"
+
+	public ByteWriter(OutputStream stream) {
+		this.stream = stream;
+		this.buf = new byte[1 << 16];
+		this.n = 0;
+	}
+
+	// make room for "length" more bytes in "buf", and return
+	// whether they fit in
+	private boolean reserve(int length) {
+		if (this.n + length > this.buf.length)
+			this.flush();
+		return length <= this.buf.length;
+	}
+
+	public void write(int b) {
+		this.reserve(1);
+		this.buf[this.n++] = (byte) b;
+	}
+
+	// write a string of ASCII characters
+	public void write(String s) {
+		int length = s.length();
+		if (!this.reserve(length)) {
+			for (int i = 0; i < length; i++)
+				this.write(s.charAt(i));
+			return;
+		}
+		for (int i = 0; i < length; i++)
+			this.buf[this.n++] = (byte) s.charAt(i);
+	}
+
+	// write a string of any characters, encoded in UTF-8: names and
+	// messages may not be ASCII
+	public void writeUtf8(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				this.write(bytes, 0, bytes.length);
+				return;
+			}
+		}
+		this.write(s);
+	}
+
+	public void write(byte[] b, int offset, int length) {
+		if (!this.reserve(length)) {
+			try {
+				this.stream.write(b, offset, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return;
+		}
+		System.arraycopy(b, offset, this.buf, this.n, length);
+		this.n += length;
+	}
+
+	public void write(ByteBuffer b, int offset, int length) {
+		if (!this.reserve(length)) {
+			byte[] bytes = new byte[length];
+			b.get(offset, bytes);
+			this.write(bytes, 0, length);
+			return;
+		}
+		b.get(offset, this.buf, this.n, length);
+		this.n += length;
+	}
+
+	// write the decimal digits of a non-negative int
+	public void writeInt(int i) {
+		int digits = 1;
+		for (int j = i; j >= 10; j /= 10)
+			digits++;
+
+		this.reserve(digits);
+		int end = this.n + digits;
+		int p = end;
+		do {
+			this.buf[--p] = (byte) ('0' + i % 10);
+			i /= 10;
+		} while (i != 0);
+		this.n = end;
+	}
+
+	public void newline() {
+		this.write('\n');
+	}
+
+	public void flush() {
+		try {
+			this.drain();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void drain() throws IOException {
+		int n = this.n;
+
+		this.n = 0;
+		this.stream.write(this.buf, 0, n);
+		this.stream.flush();
+	}
+}
@@ -0,0 +1,92 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// The errors found while compiling a file. They are collected instead
+// of stopping the compiler at the first one, so that a single pass
+// reports them all, and the caller decides what to do about them.
+//
+// The lexer may run on a thread of its own, and the classes may be
+// parsed by several threads at once, so errors are reported under a
+// lock, and listed in the order of the source whatever the order they
+// were found in.
+public class Diagnostics {
+	public static class Diagnostic {
+		public final int line; // 0 if the error isn't at a place of the
+								// file
+		public final int column;
+		public final String message;
+
+		public Diagnostic(int line, int column, String message) {
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+	}
+
+	private static final Comparator<Diagnostic> ORDER = Comparator.comparingInt((Diagnostic d) -> d.line)
+			.thenComparingInt((d) -> d.column);
+
+	private String fname; // the file compiled, or null
+	private List<Diagnostic> list;
+
+	public Diagnostics(String fname) {
+		this.fname = fname;
+		this.list = new ArrayList<Diagnostic>();
+	}
+
+	public synchronized void error(int line, int column, String message) {
+		this.list.add(new Diagnostic(line, column, message));
+	}
+
+	// an error which isn't at any place of the file
+	public void error(String message) {
+		this.error(0, 0, message);
+	}
+
+	// add the errors of "other", in the order they were found
+	public void add(Diagnostics other) {
+		List<Diagnostic> list;
+		synchronized (other) {
+			list = new ArrayList<Diagnostic>(other.list);
+		}
+		synchronized (this) {
+			this.list.addAll(list);
+		}
+	}
+
+	public synchronized int count() {
+		return this.list.size();
+	}
+
+	// the errors, in the order of the source
+	public synchronized List<Diagnostic> list() {
+		List<Diagnostic> list = new ArrayList<Diagnostic>(this.list);
+		list.sort(ORDER);
+		return list;
+	}
+
+	// Write the errors to "out", one per line, as
+	// "file:line:column: error: message".
+	public void dump(ByteWriter out) {
+		for (Diagnostic d : this.list()) {
+			if (this.fname != null) {
+				out.writeUtf8(this.fname);
+				out.write(':');
+			}
+			if (d.line > 0) {
+				out.writeInt(d.line);
+				out.write(':');
+				out.writeInt(d.column);
+				out.write(':');
+			}
+			if (this.fname != null || d.line > 0)
+				out.write(' ');
+			out.write("error: ");
+			out.writeUtf8(d.message);
+			out.newline();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// A bounded queue between exactly one producer thread and exactly one
+// consumer thread, which takes no lock: each side only writes its own
+// index, and publishes it with a release store that the other side
+// reads with an acquire load. A side which finds the ring full (or
+// empty) spins for a while, then yields its core to the other side.
+public class Ring<X> {
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(Ring.class, "head", long.class);
+			TAIL = lookup.findVarHandle(Ring.class, "tail", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static final int SPINS = 128;
+
+	private final Object[] slots;
+	private final int mask;
+
+	// The fields of each side are padded apart, so that the two
+	// threads don't share a cache line for them.
+	long p0, p1, p2, p3, p4, p5, p6;
+	// the consumer's: the next slot to take, and "tail" as last seen
+	private long head;
+	private long tailCache;
+	long q0, q1, q2, q3, q4, q5, q6;
+	// the producer's: the next slot to put, and "head" as last seen
+	private long tail;
+	private long headCache;
+	long r0, r1, r2, r3, r4, r5, r6;
+
+	// "capacity" must be a power of 2
+	public Ring(int capacity) {
+		if (Integer.bitCount(capacity) != 1)
+			new Bug();
+		this.slots = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	// put "x" at the end of the ring, waiting for a free slot
+	public void put(X x) {
+		long tail = this.tail;
+		int spins = 0;
+		if (tail - this.headCache == this.slots.length) {
+			while (tail - (this.headCache = (long) HEAD.getAcquire(this)) == this.slots.length)
+				spins = backoff(spins);
+		}
+		this.slots[(int) tail & this.mask] = x;
+		TAIL.setRelease(this, tail + 1);
+	}
+
+	// take the element at the front of the ring, waiting for one
+	@SuppressWarnings("unchecked")
+	public X take() {
+		long head = this.head;
+		int spins = 0;
+		if (head == this.tailCache) {
+			while (head == (this.tailCache = (long) TAIL.getAcquire(this)))
+				spins = backoff(spins);
+		}
+		int slot = (int) head & this.mask;
+		X x = (X) this.slots[slot];
+		this.slots[slot] = null;
+		HEAD.setRelease(this, head + 1);
+		return x;
+	}
+
+	private static int backoff(int spins) {
+		if (spins < SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+		return spins + 1;
+	}
+}